@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.unibo.alchemist.model.ProtelisIncarnation;
+import it.unibo.alchemist.model.implementations.environments.Continuous2DEnvironment;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Molecule;
+import it.unibo.alchemist.model.interfaces.Node;
+
+/**
+ * Measures {@link ProtelisIncarnation#getProperty(Node, Molecule, String)},
+ * as invoked by exporters and graphical effects on every node of the
+ * environment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PropertyBenchmark {
+
+    private static final ProtelisIncarnation INC = ProtelisIncarnation.instance();
+
+    /**
+     * Number of nodes whose property gets evaluated.
+     */
+    @Param({ "100000" })
+    public int nodes;
+
+    /**
+     * The property: empty (plain value), or a Protelis expression.
+     */
+    @Param({ "", "ans * 2", "ans > 0.5" })
+    public String property;
+
+    private List<Node<Object>> deployment;
+    private Molecule molecule;
+
+    /**
+     * Per-thread position in the deployment.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+    }
+
+    /**
+     * Builds the nodes.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        final RandomGenerator rng = new MersenneTwister(0);
+        final Environment<Object> env = new Continuous2DEnvironment<>();
+        molecule = INC.createMolecule("x");
+        deployment = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            final Node<Object> node = INC.createNode(rng, env, null);
+            node.setConcentration(molecule, rng.nextDouble());
+            deployment.add(node);
+        }
+    }
+
+    /**
+     * @param cursor
+     *            the position in the deployment
+     * @return the property of the next node
+     */
+    @Benchmark
+    public double getProperty(final Cursor cursor) {
+        return nextProperty(cursor);
+    }
+
+    /**
+     * Evaluation from several threads at once, as done by concurrent
+     * exporters.
+     * 
+     * @param cursor
+     *            the position in the deployment
+     * @return the property of the next node
+     */
+    @Benchmark
+    @Threads(4)
+    public double getPropertyConcurrently(final Cursor cursor) {
+        return nextProperty(cursor);
+    }
+
+    private double nextProperty(final Cursor cursor) {
+        final Node<Object> node = deployment.get(cursor.next);
+        cursor.next = (cursor.next + 1) % deployment.size();
+        return INC.getProperty(node, molecule, property);
+    }
+
+}
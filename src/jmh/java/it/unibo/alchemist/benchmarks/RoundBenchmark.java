@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.actions.SendToNeighbor;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.protelis.AlchemistNetworkManager;
+import it.unibo.alchemist.protelis.SynchronousRounds;
+
+/**
+ * Measures whole synchronous rounds: every {@link RunProtelisProgram} of the
+ * environment is executed, then every {@link SendToNeighbor}. Rounds and
+ * delivered messages are reported per second through auxiliary counters.
+ *
+ * By default only scenarios, sizes and densities are swept, with every
+ * optional feature disabled. Features are compared by overriding their
+ * parameters, e.g.
+ * {@code ./gradlew jmh -PjmhArgs="RoundBenchmark -p nodes=1000 -p delta=false,true"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RoundBenchmark {
+
+    /**
+     * Simulation file to load.
+     */
+    @Param({ "simple01.psim", "nbr01.psim", "nbr02.psim", "distanceTo.psim" })
+    public String scenario;
+
+    /**
+     * Number of deployed nodes.
+     */
+    @Param({ "100", "1000", "10000" })
+    public int nodes;
+
+    /**
+     * Average number of neighbors per node.
+     */
+    @Param({ "4", "16" })
+    public double density;
+
+    /**
+     * Whether network managers encode states, only shipping the changes since
+     * the last round.
+     */
+    @Param("false")
+    public boolean delta;
+
+    /**
+     * Whether network managers ship states keyed by {@link org.protelis.vm.util.CodePath} codes.
+     */
+    @Param("false")
+    public boolean compact;
+
+    /**
+     * Whether programs record runtime metrics.
+     */
+    @Param("false")
+    public boolean metrics;
+
+    /**
+     * Whether programs skip the rounds in which nothing changed.
+     */
+    @Param("false")
+    public boolean quiescence;
+
+    private List<RunProtelisProgram> programs;
+    private List<SendToNeighbor> sends;
+    private long messagesPerRound;
+    private SynchronousRounds sequential;
+    private SynchronousRounds parallel;
+
+    /**
+     * Rounds and messages completed, reported as rates.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Counters {
+        /**
+         * Completed rounds.
+         */
+        public long rounds;
+        /**
+         * Messages delivered to neighbors.
+         */
+        public long messages;
+
+        /**
+         * Resets the counters.
+         */
+        @Setup(Level.Iteration)
+        public void clean() {
+            rounds = 0;
+            messages = 0;
+        }
+    }
+
+    /**
+     * @throws Exception
+     *             if the scenario can not be loaded
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final Environment<Object> env = Scenarios.load(scenario, nodes, density);
+        programs = Scenarios.actions(env, RunProtelisProgram.class);
+        if (metrics) {
+            programs.forEach(p -> p.enableMetrics(false));
+        }
+        programs.forEach(p -> p.setQuiescenceDetection(quiescence));
+        sends = Scenarios.actions(env, SendToNeighbor.class);
+        sends.forEach(s -> {
+            final AlchemistNetworkManager netmgr = s.getNode().getNetworkManager(s.getProtelisProgram());
+            netmgr.setWireEncoding(delta);
+            netmgr.setDeltaEncoding(delta);
+            netmgr.setCompactEncoding(compact);
+        });
+        messagesPerRound = sends.stream()
+                .mapToLong(s -> env.getNeighborhood(s.getNode()).size())
+                .sum();
+        sequential = new SynchronousRounds(env);
+        parallel = new SynchronousRounds(env, ForkJoinPool.commonPool());
+        /*
+         * Make sure that every program has something to send.
+         */
+        computeAll();
+    }
+
+    /**
+     * A full round: computation on every node, followed by message exchange.
+     * 
+     * @param counters
+     *            the counters
+     */
+    @Benchmark
+    public void round(final Counters counters) {
+        computeAll();
+        sendAll();
+        counters.rounds++;
+        counters.messages += messagesPerRound;
+    }
+
+    /**
+     * The computational part of a round only.
+     * 
+     * @param counters
+     *            the counters
+     */
+    @Benchmark
+    public void compute(final Counters counters) {
+        computeAll();
+        counters.rounds++;
+    }
+
+    /**
+     * A full round in bulk-synchronous mode, on a single thread.
+     * 
+     * @param counters
+     *            the counters
+     */
+    @Benchmark
+    public void synchronousRound(final Counters counters) {
+        sequential.step();
+        counters.rounds++;
+        counters.messages += messagesPerRound;
+    }
+
+    /**
+     * A full round in bulk-synchronous mode, on the common fork-join pool.
+     * 
+     * @param counters
+     *            the counters
+     */
+    @Benchmark
+    public void parallelSynchronousRound(final Counters counters) {
+        parallel.step();
+        counters.rounds++;
+        counters.messages += messagesPerRound;
+    }
+
+    private void computeAll() {
+        for (final RunProtelisProgram program : programs) {
+            program.execute();
+        }
+    }
+
+    private void sendAll() {
+        for (final SendToNeighbor send : sends) {
+            send.execute();
+        }
+    }
+
+}
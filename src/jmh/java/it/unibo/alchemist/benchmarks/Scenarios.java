@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.xtext.generator.IGenerator;
+import org.eclipse.xtext.generator.InMemoryFileSystemAccess;
+import org.eclipse.xtext.resource.XtextResource;
+import org.eclipse.xtext.resource.XtextResourceSet;
+
+import com.google.inject.Injector;
+
+import it.unibo.alchemist.language.EnvironmentBuilder;
+import it.unibo.alchemist.language.protelis.ProtelisDSLStandaloneSetup;
+import it.unibo.alchemist.model.interfaces.Action;
+import it.unibo.alchemist.model.interfaces.Environment;
+
+/**
+ * Loads the test simulations shipped with the incarnation, rescaled to an
+ * arbitrary number of nodes and an arbitrary neighborhood density.
+ *
+ * The original scenarios place their nodes in a square whose side grows as
+ * the square root of the node count; the communication range is then chosen
+ * such that each node has, on average, the requested number of neighbors.
+ */
+public final class Scenarios {
+
+    private static final XtextResourceSet XTEXT;
+    private static final Injector INJECTOR;
+    private static final String PLACEMENT = "place\\s+\\d+\\s+nodes\\s+within\\s+rect\\s*\\([^)]*\\)";
+    private static final String LINKING = "linking\\s+nodes\\s+in\\s+range\\s+[0-9.]+";
+
+    static {
+        new org.eclipse.emf.mwe.utils.StandaloneSetup().setPlatformUri(".");
+        INJECTOR = new ProtelisDSLStandaloneSetup().createInjectorAndDoEMFRegistration();
+        XTEXT = INJECTOR.getInstance(XtextResourceSet.class);
+        XTEXT.addLoadOption(XtextResource.OPTION_RESOLVE_ALL, Boolean.TRUE);
+    }
+
+    private Scenarios() {
+    }
+
+    /**
+     * @param scenario
+     *            the simulation file name, e.g. "nbr02.psim"
+     * @param nodes
+     *            the number of nodes to deploy
+     * @param density
+     *            the expected average number of neighbors per node
+     * @return the {@link Environment}, ready to be used
+     * @throws Exception
+     *             if the simulation can not be loaded
+     */
+    public static Environment<Object> load(final String scenario, final int nodes, final double density) throws Exception {
+        final double side = Math.max(1, Math.sqrt(nodes) - 1);
+        final double range = Math.sqrt(density * side * side / (Math.PI * nodes));
+        final String source = readScenario(scenario)
+                .replaceAll(PLACEMENT, String.format(Locale.US, "place %d nodes within rect (0,0,%f,%f)", nodes, side, side))
+                .replaceAll(LINKING, String.format(Locale.US, "linking nodes in range %f", range));
+        final Resource res = XTEXT.createResource(URI.createURI("dummy:/" + nodes + '-' + scenario));
+        res.load(new ByteArrayInputStream(source.getBytes(Charsets.UTF_8)), XTEXT.getLoadOptions());
+        final IGenerator generator = INJECTOR.getInstance(IGenerator.class);
+        final InMemoryFileSystemAccess fsa = INJECTOR.getInstance(InMemoryFileSystemAccess.class);
+        generator.doGenerate(res, fsa);
+        final Collection<CharSequence> files = fsa.getTextFiles().values();
+        if (files.size() != 1) {
+            throw new IllegalStateException(scenario + " generated " + files.size() + " files, one was expected");
+        }
+        final ByteArrayInputStream strIS = new ByteArrayInputStream(files.iterator().next().toString().getBytes(Charsets.UTF_8));
+        final Environment<Object> env = EnvironmentBuilder.build(strIS).get().getEnvironment();
+        return env;
+    }
+
+    /**
+     * @param env
+     *            the {@link Environment}
+     * @param type
+     *            the type of {@link Action} to collect
+     * @param <A>
+     *            the {@link Action} type
+     * @return all the actions of the requested type, in node order
+     */
+    public static <A extends Action<Object>> List<A> actions(final Environment<Object> env, final Class<A> type) {
+        return env.getNodes().stream()
+                .flatMap(n -> n.getReactions().stream())
+                .flatMap(r -> r.getActions().stream())
+                .filter(type::isInstance)
+                .map(type::cast)
+                .collect(Collectors.toList());
+    }
+
+    private static String readScenario(final String scenario) throws IOException {
+        try (InputStream in = Scenarios.class.getResourceAsStream("/simulations/" + scenario)) {
+            Objects.requireNonNull(in, scenario + " is not available in the classpath");
+            return IOUtils.toString(in, Charsets.UTF_8);
+        }
+    }
+
+}
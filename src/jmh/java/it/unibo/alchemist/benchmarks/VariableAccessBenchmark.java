@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.unibo.alchemist.model.ProtelisIncarnation;
+import it.unibo.alchemist.model.implementations.environments.Continuous2DEnvironment;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Action;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Molecule;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.model.interfaces.TimeDistribution;
+
+/**
+ * Compares the storage modes of {@link ProtelisNode} on programs that
+ * heavily read and write environment variables. Run it with the GC profiler
+ * to compare the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class VariableAccessBenchmark {
+
+    private static final ProtelisIncarnation INC = ProtelisIncarnation.instance();
+    private static final String[] VARIABLES = { "a", "b", "c", "d", "e", "f", "g", "h" };
+    private static final String PROGRAM = ""
+            + "self.putEnvironmentVariable(\"a\", self.getEnvironmentVariable(\"a\") + 1);\n"
+            + "self.putEnvironmentVariable(\"b\", self.getEnvironmentVariable(\"a\") * 2);\n"
+            + "self.putEnvironmentVariable(\"c\", self.getEnvironmentVariable(\"b\") - self.getEnvironmentVariable(\"a\"));\n"
+            + "self.putEnvironmentVariable(\"d\", self.getEnvironmentVariable(\"c\") + self.getEnvironmentVariable(\"b\"));\n"
+            + "self.getEnvironmentVariable(\"d\")";
+
+    /**
+     * How the node stores its variables: in the node map only, also in slots,
+     * or in slots with unboxed numbers.
+     */
+    @Param({ "map", "slots", "primitive" })
+    public String storage;
+
+    private ProtelisNode node;
+    private Action<Object> program;
+    private Molecule[] molecules;
+
+    /**
+     * Builds a node running the variable-heavy program.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        final RandomGenerator rng = new MersenneTwister(0);
+        final Environment<Object> env = new Continuous2DEnvironment<>();
+        node = new ProtelisNode(env, !"map".equals(storage), "primitive".equals(storage));
+        molecules = new Molecule[VARIABLES.length];
+        for (int i = 0; i < VARIABLES.length; i++) {
+            node.put(VARIABLES[i], 0d);
+            molecules[i] = INC.createMolecule(VARIABLES[i]);
+        }
+        final TimeDistribution<Object> time = INC.createTimeDistribution(rng, env, node, "1");
+        final Reaction<Object> reaction = INC.createReaction(rng, env, node, time, PROGRAM);
+        program = reaction.getActions().get(0);
+    }
+
+    /**
+     * A program run.
+     */
+    @Benchmark
+    public void program() {
+        program.execute();
+    }
+
+    /**
+     * Reads and writes all the variables through the
+     * {@link org.protelis.vm.ExecutionEnvironment} interface.
+     * 
+     * @return the sum of the variables
+     */
+    @Benchmark
+    public double environment() {
+        double sum = 0;
+        for (final String variable : VARIABLES) {
+            final double value = (Double) node.get(variable) + 1;
+            node.put(variable, value);
+            sum += (Double) node.get(variable);
+        }
+        return sum;
+    }
+
+    /**
+     * Reads all the variables as an exporter would.
+     * 
+     * @return the sum of the variables
+     */
+    @Benchmark
+    public double export() {
+        double sum = 0;
+        for (final Molecule molecule : molecules) {
+            sum += node.getNumericConcentration(molecule);
+        }
+        return sum;
+    }
+
+}
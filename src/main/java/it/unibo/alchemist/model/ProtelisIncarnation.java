@@ -10,21 +10,20 @@ package it.unibo.alchemist.model;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import org.apache.commons.math3.random.RandomGenerator;
 import org.danilopianini.lang.LangUtils;
-import org.danilopianini.lang.util.FasterString;
-import org.protelis.lang.ProtelisLoader;
 import org.protelis.lang.datatype.DeviceUID;
-import org.protelis.vm.ExecutionContext;
 import org.protelis.vm.ExecutionEnvironment;
 import org.protelis.vm.NetworkManager;
 import org.protelis.vm.ProtelisProgram;
@@ -32,8 +31,6 @@ import org.protelis.vm.ProtelisVM;
 import org.protelis.vm.impl.AbstractExecutionContext;
 import org.protelis.vm.util.CodePath;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 
 import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
@@ -44,6 +41,7 @@ import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
 import it.unibo.alchemist.model.implementations.reactions.ChemicalReaction;
 import it.unibo.alchemist.model.implementations.reactions.Event;
 import it.unibo.alchemist.model.implementations.timedistributions.DiracComb;
+import it.unibo.alchemist.model.implementations.timedistributions.RestorableDiracComb;
 import it.unibo.alchemist.model.implementations.timedistributions.ExponentialTime;
 import it.unibo.alchemist.model.implementations.times.DoubleTime;
 import it.unibo.alchemist.model.interfaces.Action;
@@ -54,41 +52,72 @@ import it.unibo.alchemist.model.interfaces.Molecule;
 import it.unibo.alchemist.model.interfaces.Node;
 import it.unibo.alchemist.model.interfaces.Reaction;
 import it.unibo.alchemist.model.interfaces.TimeDistribution;
+import it.unibo.alchemist.protelis.MoleculeTable;
+import it.unibo.alchemist.protelis.ProgramRegistry;
+import it.unibo.alchemist.protelis.SplitMix64;
 
 /**
  */
 public final class ProtelisIncarnation implements Incarnation<Object> {
 
+    /**
+     * Node parameter that enables the unboxed storage of numeric variables.
+     */
+    public static final String PRIMITIVE_NUMBERS = "primitive";
+    /**
+     * Time distribution parameter that aligns the phase of rounds to buckets.
+     */
+    public static final String ALIGNED = "aligned";
+    private static final int MAX_BUCKET_DIGITS = 9;
     private static final String[] ANS_NAMES = { "ans", "res", "result", "answer", "val", "value" };
-    private static final Set<FasterString> NAMES;
+    private static final Set<String> NAMES;
     private static final ProtelisIncarnation SINGLETON = new ProtelisIncarnation();
-    private final Cache<String, Optional<ProtelisProgram>> cache = CacheBuilder.newBuilder().maximumSize(100)
-            .expireAfterAccess(1, TimeUnit.HOURS).expireAfterWrite(1, TimeUnit.HOURS).build();
+    private static final MoleculeTable MOLECULES = new MoleculeTable();
+    private static final NetworkManager NO_NETWORK = new NetworkManager() {
+        @Override
+        public void shareState(final Map<CodePath, Object> toSend) {
+        }
+        @Override
+        public Map<DeviceUID, Map<CodePath, Object>> getNeighborState() {
+            return Collections.emptyMap();
+        }
+    };
+    /*
+     * Property evaluation is very frequent: each thread reuses its own context.
+     */
+    private static final ThreadLocal<DummyContext> PROPERTY_CONTEXT = ThreadLocal.withInitial(DummyContext::new);
+    /*
+     * Programs store their results: each thread evaluates its own copy of
+     * the most recently used properties.
+     */
+    private static final int PROPERTY_PROGRAMS = 64;
+    private static final ThreadLocal<Map<String, Optional<ProtelisProgram>>> PROPERTY_COPIES =
+            ThreadLocal.withInitial(() -> new LinkedHashMap<String, Optional<ProtelisProgram>>(PROPERTY_PROGRAMS, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, Optional<ProtelisProgram>> eldest) {
+                    return size() > PROPERTY_PROGRAMS;
+                }
+            });
+    /*
+     * Each property context draws from its own stream
+     */
+    private static final long PROPERTY_SEED = 0x5eed;
+    private static final AtomicLong PROPERTY_STREAMS = new AtomicLong();
+    private volatile ProgramRegistry programs = new ProgramRegistry();
 
     static {
         NAMES = Collections.unmodifiableSet(Arrays.stream(ANS_NAMES)
                 .flatMap(n -> Arrays.stream(new String[] { n.toLowerCase(Locale.US), n.toUpperCase(Locale.US) }))
-                .map(FasterString::new)
                 .collect(Collectors.toSet()));
     }
 
     @Override
     public double getProperty(final Node<Object> node, final Molecule mol, final String prop) {
-        Object val = node.getConcentration(mol);
-        Optional<ProtelisProgram> prog = cache.getIfPresent(prop);
-        if (prog == null) {
-            try {
-                prog = Optional.of(ProtelisLoader.parse(prop));
-                cache.put(prop, prog);
-            } catch (final RuntimeException e) {
-                /*
-                 * all fine, there is no program to evaluate.
-                 */
-                prog = Optional.empty();
-                cache.put(prop, prog);
-            }
-        }
-        val = preprocess(prog, val, node);
+        /*
+         * If prop is not a program, there is nothing to evaluate.
+         */
+        final Object val = preprocess(propertyProgram(prop), node.getConcentration(mol), node);
         if (val instanceof Number) {
             return ((Number) val).doubleValue();
         } else if (val instanceof String) {
@@ -107,29 +136,48 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
         return Double.NaN;
     }
 
+    private Optional<ProtelisProgram> propertyProgram(final String prop) {
+        final Map<String, Optional<ProtelisProgram>> copies = PROPERTY_COPIES.get();
+        Optional<ProtelisProgram> res = copies.get(prop);
+        if (res == null) {
+            res = programs.get(prop);
+            copies.put(prop, res);
+        }
+        return res;
+    }
+
     private static Object preprocess(final Optional<ProtelisProgram> prog, final Object val, final Node<?> node) {
-        try {
-            if (prog.isPresent()) {
-                final ExecutionContext ctx = new DummyContext(node);
-                final ProtelisProgram program = prog.get();
+        if (prog.isPresent()) {
+            final ProtelisProgram program = prog.get();
+            final DummyContext ctx = PROPERTY_CONTEXT.get().bind(node, val);
+            try {
                 ctx.setup();
-                NAMES.stream().forEach(n -> ctx.getExecutionEnvironment().put(n.toString(), val));
                 program.compute(ctx);
                 ctx.commit();
                 return program.getCurrentValue();
+            } catch (final RuntimeException | Error e) {
+                /*
+                 * Something went wrong, fallback.
+                 */
+                return val;
+            } finally {
+                ctx.bind(null, null);
             }
-        } catch (final RuntimeException | Error e) {
-            /*
-             * Something went wrong, fallback.
-             */
-            return val;
         }
         return val;
     }
 
     @Override
     public Molecule createMolecule(final String s) {
-        return new SimpleMolecule(s);
+        return MOLECULES.intern(s).getMolecule();
+    }
+
+    /**
+     * @return the {@link MoleculeTable} where all the molecules created by this
+     *         incarnation are interned
+     */
+    public MoleculeTable getMoleculeTable() {
+        return MOLECULES;
     }
 
     @Override
@@ -137,6 +185,23 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
         return getClass().getSimpleName();
     }
 
+    /**
+     * @return the {@link ProgramRegistry} used to parse programs, concentrations
+     *         and properties
+     */
+    public ProgramRegistry getProgramRegistry() {
+        return programs;
+    }
+
+    /**
+     * @param registry
+     *            the {@link ProgramRegistry} to use from now on, e.g. one with
+     *            a different size or eviction policy
+     */
+    public void setProgramRegistry(final ProgramRegistry registry) {
+        programs = Objects.requireNonNull(registry);
+    }
+
     /**
      * @return an instance of a {@link ProtelisIncarnation}
      */
@@ -144,52 +209,33 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
         return SINGLETON;
     }
 
-    private static class DummyContext extends AbstractExecutionContext {
-        private final Node<?> node;
-        DummyContext(final Node<?> node) {
-            super(new ExecutionEnvironment() {
-                @Override
-                public void setup() {
-                }
-                @Override
-                public Object remove(final String id) {
-                    throw new UnsupportedOperationException();
-                }
-                @Override
-                public boolean put(final String id, final Object v) {
-                    throw new UnsupportedOperationException();
-                }
-                @Override
-                public boolean has(final String id) {
-                    return node.contains(new SimpleMolecule(id));
-                }
-                @Override
-                public Object get(final String id, final Object defaultValue) {
-                    return Optional.<Object>ofNullable(get(id)).orElse(defaultValue);
-                }
-                @Override
-                public Object get(final String id) {
-                    return node.getConcentration(new SimpleMolecule(id));
-                }
-                @Override
-                public void commit() {
-                }
-            }, new NetworkManager() {
-                @Override
-                public void shareState(final Map<CodePath, Object> toSend) {
-                }
-                @Override
-                public Map<DeviceUID, Map<CodePath, Object>> getNeighborState() {
-                    return Collections.emptyMap();
-                }
-            });
-            this.node = node;
+    /**
+     * A context reused across evaluations: {@link #bind(Node, Object)} points
+     * it to a node and to a value, which gets exposed to the program as any
+     * of the answer variables.
+     */
+    private static final class DummyContext extends AbstractExecutionContext {
+        private final PropertyEnvironment environment;
+        private final SplitMix64 random = SplitMix64.derive(PROPERTY_SEED, PROPERTY_STREAMS.getAndIncrement());
+
+        DummyContext() {
+            this(new PropertyEnvironment());
+        }
+
+        private DummyContext(final PropertyEnvironment environment) {
+            super(environment, NO_NETWORK);
+            this.environment = environment;
+        }
+
+        DummyContext bind(final Node<?> node, final Object answer) {
+            environment.bind(node, answer);
+            return this;
         }
 
         @Override
         public DeviceUID getDeviceUID() {
-            if (node instanceof ProtelisNode) {
-                return (ProtelisNode) node;
+            if (environment.node instanceof ProtelisNode) {
+                return (ProtelisNode) environment.node;
             }
             throw new IllegalStateException("You tried to compute a Protelis device UID, on a non-Protelis node");
         }
@@ -199,7 +245,7 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
         }
         @Override
         public double nextRandomDouble() {
-            return Math.random();
+            return random.nextDouble();
         }
         @Override
         protected AbstractExecutionContext instance() {
@@ -208,11 +254,98 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
 
     }
 
+    /**
+     * Read-only view of a node, where the answer variables are bound to a
+     * value. Writes are retained locally until the next binding.
+     */
+    private static final class PropertyEnvironment implements ExecutionEnvironment {
+        private Node<?> node;
+        private Object answer;
+        private Map<String, Object> locals;
+
+        void bind(final Node<?> target, final Object value) {
+            node = target;
+            answer = value;
+            if (locals != null) {
+                locals.clear();
+            }
+        }
+        @Override
+        public void setup() {
+        }
+        @Override
+        public Object remove(final String id) {
+            return locals == null ? null : locals.remove(id);
+        }
+        @Override
+        public boolean put(final String id, final Object v) {
+            if (locals == null) {
+                locals = new HashMap<>();
+            }
+            locals.put(id, v);
+            return true;
+        }
+        @Override
+        public boolean has(final String id) {
+            if (locals != null && locals.containsKey(id) || NAMES.contains(id)) {
+                return true;
+            }
+            if (node instanceof ProtelisNode) {
+                return ((ProtelisNode) node).has(id);
+            }
+            return node != null && node.contains(lookup(id));
+        }
+        @Override
+        public Object get(final String id, final Object defaultValue) {
+            final Object res = get(id);
+            return res == null ? defaultValue : res;
+        }
+        @Override
+        public Object get(final String id) {
+            if (locals != null && locals.containsKey(id)) {
+                return locals.get(id);
+            }
+            if (NAMES.contains(id)) {
+                return answer;
+            }
+            if (node instanceof ProtelisNode) {
+                return ((ProtelisNode) node).get(id);
+            }
+            return node == null ? null : node.getConcentration(lookup(id));
+        }
+        /*
+         * Reading must not intern new names
+         */
+        private static Molecule lookup(final String id) {
+            final MoleculeTable.Slot slot = MOLECULES.find(id);
+            return slot == null ? new SimpleMolecule(id) : slot.getMolecule();
+        }
+        @Override
+        public void commit() {
+        }
+    }
+
+    /**
+     * Builds a {@link ProtelisNode} storing its variables in slots. If param
+     * is {@value #PRIMITIVE_NUMBERS}, numeric variables are stored unboxed.
+     */
     @Override
     public Node<Object> createNode(final RandomGenerator rand, final Environment<Object> env, final String param) {
-        return new ProtelisNode(env);
+        return new ProtelisNode(env, true, PRIMITIVE_NUMBERS.equalsIgnoreCase(param));
     }
 
+    /**
+     * Builds a {@link RestorableDiracComb} with the frequency in param (1 if it is not a
+     * number) and a random phase. If param is followed by
+     * {@value #ALIGNED} and optionally by a number of buckets (1 if missing),
+     * e.g. "1 aligned 4", the phase is rounded down to one of the buckets, so
+     * that nodes in the same bucket can be run by a single
+     * {@link it.unibo.alchemist.model.implementations.reactions.BatchReaction}.
+     * 
+     * @throws IllegalArgumentException
+     *             if the number of buckets is not a positive integer, or
+     *             anything follows it
+     */
     @Override
     public TimeDistribution<Object> createTimeDistribution(
             final RandomGenerator rand,
@@ -222,13 +355,38 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
         if (param == null) {
             return new ExponentialTime<>(Double.POSITIVE_INFINITY, rand);
         }
+        final String[] tokens = param.trim().split("\\s+");
         double frequency;
         try {
-            frequency = Double.parseDouble(param);
+            frequency = Double.parseDouble(tokens[0]);
         } catch (final NumberFormatException e) {
             frequency = 1;
         }
-        return new DiracComb<>(new DoubleTime(rand.nextDouble() / frequency), frequency);
+        double phase = rand.nextDouble();
+        if (tokens.length > 1 && ALIGNED.equalsIgnoreCase(tokens[1])) {
+            if (tokens.length > 3) {
+                throw new IllegalArgumentException("Unexpected tokens after the number of buckets in \"" + param + '"');
+            }
+            final int buckets = tokens.length > 2 ? parseBuckets(tokens[2], param) : 1;
+            phase = Math.floor(phase * buckets) / buckets;
+        }
+        return new RestorableDiracComb<>(new DoubleTime(phase / frequency), frequency);
+    }
+
+    private static int parseBuckets(final String token, final String param) {
+        /*
+         * At most 9 digits, so that the value fits an int
+         */
+        boolean digits = !token.isEmpty() && token.length() <= MAX_BUCKET_DIGITS;
+        for (int i = 0; digits && i < token.length(); i++) {
+            digits = token.charAt(i) >= '0' && token.charAt(i) <= '9';
+        }
+        final int res = digits ? Integer.parseInt(token) : 0;
+        if (res < 1) {
+            throw new IllegalArgumentException("Invalid number of buckets \"" + token + "\" in \"" + param
+                    + "\": a positive integer is required");
+        }
+        return res;
     }
 
     @SuppressWarnings("unchecked")
@@ -254,18 +412,10 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
         if (node instanceof ProtelisNode) {
             final ProtelisNode pNode = (ProtelisNode) node;
             /*
-             * The list of ProtelisPrograms that have already been completed with a ComputationalRoundComplete condition
+             * The ProtelisPrograms that have no ComputationalRoundComplete
+             * condition yet. Only one should be available.
              */
-            final List<RunProtelisProgram> alreadyDone = pNode.getReactions()
-                .parallelStream()
-                .flatMap(r -> r.getConditions().parallelStream())
-                .filter(c -> c instanceof ComputationalRoundComplete)
-                .map(c -> (ComputationalRoundComplete) c)
-                .flatMap(crc -> crc.getInfluencingMolecules().parallelStream())
-                .filter(mol -> mol instanceof RunProtelisProgram)
-                .map(mol -> (RunProtelisProgram) mol)
-                .collect(Collectors.toList());
-            final List<RunProtelisProgram> pList = getIncomplete(pNode, alreadyDone);
+            final List<RunProtelisProgram> pList = pNode.getProgramsWithoutCompletionCheck();
             if (pList.isEmpty()) {
                 throw new IllegalStateException("There is no program requiring a "
                         + ComputationalRoundComplete.class.getSimpleName() + " condition");
@@ -288,14 +438,7 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
         if (node instanceof ProtelisNode) {
             final ProtelisNode pNode = (ProtelisNode) node;
             if (param.equalsIgnoreCase("send")) {
-                final List<RunProtelisProgram> alreadyDone = pNode.getReactions()
-                    .parallelStream()
-                    .flatMap(r -> r.getActions().parallelStream())
-                    .filter(a -> a instanceof SendToNeighbor)
-                    .map(c -> (SendToNeighbor) c)
-                    .map(crc -> crc.getProtelisProgram())
-                    .collect(Collectors.toList());
-                final List<RunProtelisProgram> pList = getIncomplete(pNode, alreadyDone);
+                final List<RunProtelisProgram> pList = pNode.getProgramsWithoutSend();
                 if (pList.isEmpty()) {
                     throw new IllegalStateException("There is no program requiring a "
                             + SendToNeighbor.class.getSimpleName() + " action");
@@ -317,39 +460,21 @@ public final class ProtelisIncarnation implements Incarnation<Object> {
                 + ", it is a " + node.getClass().getName() + " instead");
     }
 
-    private static List<RunProtelisProgram> getIncomplete(final ProtelisNode pNode, final List<RunProtelisProgram> alreadyDone) {
-        return pNode.getReactions().parallelStream()
-                /*
-                 * Get the actions
-                 */
-                .flatMap(r -> r.getActions().parallelStream())
-                /*
-                 * Get only the ProtelisPrograms
-                 */
-                .filter(a -> a instanceof RunProtelisProgram)
-                .map(a -> (RunProtelisProgram) a)
-                /*
-                 * Retain only those ProtelisPrograms that have no associated ComputationalRoundComplete.
-                 * 
-                 * Only one should be available.
-                 */
-                .filter(prog -> !alreadyDone.contains(prog))
-                .collect(Collectors.toList());
-    }
-
     @Override
     public Object createConcentration(final String s) {
-        try {
-            final ProtelisProgram program = ProtelisLoader.parse(s);
-            final ProtelisVM vm = new ProtelisVM(program, new DummyContext(null));
-            vm.runCycle();
-            return vm.getCurrentValue();
-        } catch (IllegalArgumentException e) {
+        final Optional<ProtelisProgram> program = programs.get(s);
+        if (program.isPresent()) {
             /*
-             * Not a valid program: inject the String itself
+             * The program is a new copy, private to this call
              */
-            return s;
+            final ProtelisVM vm = new ProtelisVM(program.get(), PROPERTY_CONTEXT.get().bind(null, null));
+            vm.runCycle();
+            return vm.getCurrentValue();
         }
+        /*
+         * Not a valid program: inject the String itself
+         */
+        return s;
     }
 
 }
@@ -9,15 +9,22 @@
 package it.unibo.alchemist.model.implementations.actions;
 
 import java.io.IOException;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.danilopianini.lang.LangUtils;
-import org.protelis.lang.ProtelisLoader;
-import org.protelis.vm.ExecutionContext;
 import org.protelis.vm.ProtelisVM;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import it.unibo.alchemist.model.ProtelisIncarnation;
 import it.unibo.alchemist.model.implementations.molecules.SimpleMolecule;
 import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
 import it.unibo.alchemist.model.interfaces.Action;
@@ -28,23 +35,59 @@ import it.unibo.alchemist.model.interfaces.Node;
 import it.unibo.alchemist.model.interfaces.Reaction;
 import it.unibo.alchemist.protelis.AlchemistExecutionContext;
 import it.unibo.alchemist.protelis.AlchemistNetworkManager;
+import it.unibo.alchemist.protelis.MetricsRegistry;
+import it.unibo.alchemist.protelis.ProgramMetrics;
+import it.unibo.alchemist.protelis.RoundExporter;
+import it.unibo.alchemist.protelis.SplitMix64;
 
 /**
  */
 @SuppressFBWarnings(value = "EQ_DOESNT_OVERRIDE_EQUALS", justification = "This is desired.")
 public class RunProtelisProgram extends SimpleMolecule implements Action<Object> {
 
-    private static final long serialVersionUID = 2207914086772704332L;
+    private static final long serialVersionUID = 2207914086772704333L;
     private final Environment<Object> environment;
     private final ProtelisNode node;
     private final Reaction<Object> reaction;
-    private final org.protelis.vm.ProtelisProgram program;
+    private org.protelis.vm.ProtelisProgram program;
+    private final String source;
     @SuppressFBWarnings(value = "SE_BAD_FIELD", justification = "All the random engines provided by Apache are Serializable")
     private final RandomGenerator random;
     private transient ProtelisVM vm;
+    private transient AlchemistExecutionContext context;
+    private transient AlchemistNetworkManager netmgr;
     private boolean computationalCycleComplete;
+    private ProgramMetrics metrics;
+    /*
+     * Quiescence detection
+     */
+    private boolean quiescence;
+    private boolean stable;
+    private long nodeVersion = -1;
+    private long rounds;
+    private long skippedRounds;
+    private transient List<Molecule> modified;
+    /*
+     * Idle release
+     */
+    private double idleThreshold = Double.POSITIVE_INFINITY;
+    private double lastExecution = Double.NEGATIVE_INFINITY;
+    /*
+     * Private random stream, if any. It is derived at the first execution,
+     * once the program is installed on its node
+     */
+    private boolean privateStream;
+    private long masterSeed;
+    private SplitMix64 stream;
+    private boolean concurrent;
+    private transient RoundExporter exporter;
 
     /**
+     * Builds a new program. Sources are parsed once, through the
+     * incarnation's {@link it.unibo.alchemist.protelis.ProgramRegistry}, and
+     * each program gets its own copy of the parsed code, along with the state
+     * it stores.
+     * 
      * @param env
      *            the environment
      * @param n
@@ -55,6 +98,8 @@ public class RunProtelisProgram extends SimpleMolecule implements Action<Object>
      *            the random engine
      * @param prog
      *            the Protelis program
+     * @throws IllegalArgumentException
+     *             if prog is not a valid Protelis program
      * @throws SecurityException
      *             if you are not authorized to load required classes
      * @throws ClassNotFoundException
@@ -66,7 +111,7 @@ public class RunProtelisProgram extends SimpleMolecule implements Action<Object>
             final Reaction<Object> r,
             final RandomGenerator rand,
             final String prog) throws SecurityException, ClassNotFoundException {
-        this(env, n, r, rand, ProtelisLoader.parse(prog));
+        this(env, n, r, rand, prog, ProtelisIncarnation.instance().getProgramRegistry().parse(prog));
     }
 
     private RunProtelisProgram(
@@ -74,24 +119,43 @@ public class RunProtelisProgram extends SimpleMolecule implements Action<Object>
             final ProtelisNode n,
             final Reaction<Object> r,
             final RandomGenerator rand,
+            final String src,
             final org.protelis.vm.ProtelisProgram prog) {
         super(prog.getName());
-        LangUtils.requireNonNull(env, r, n, prog, rand);
+        LangUtils.requireNonNull(env, r, n, src, prog, rand);
         program = prog;
+        source = src;
         environment = env;
         node = n;
         random = rand;
         reaction = r;
-        final AlchemistNetworkManager netmgr = new AlchemistNetworkManager(environment, node, this);
+        netmgr = new AlchemistNetworkManager(environment, node, reaction, this);
         node.addNetworkManger(this, netmgr);
-        final ExecutionContext ctx = new AlchemistExecutionContext(env, n, r, rand, netmgr);
-        vm = new ProtelisVM(prog, ctx);
+        /*
+         * The context and the VM are created at the first execution
+         */
     }
 
     @Override
     public RunProtelisProgram cloneOnNewNode(final Node<Object> n, final Reaction<Object> r) {
         if (n instanceof ProtelisNode) {
-            return new RunProtelisProgram(environment, (ProtelisNode) n, r, random, program);
+            final RunProtelisProgram res = new RunProtelisProgram(environment, (ProtelisNode) n, r, random, source,
+                    ProtelisIncarnation.instance().getProgramRegistry().parse(source));
+            res.netmgr.setDeltaEncoding(netmgr.isDeltaEncoding());
+            res.netmgr.setRetentionTime(netmgr.getRetentionTime());
+            res.netmgr.setCompactEncoding(netmgr.isCompactEncoding());
+            res.netmgr.setWireEncoding(netmgr.isWireEncoding());
+            res.setQuiescenceDetection(quiescence);
+            res.setIdleRelease(idleThreshold);
+            res.setConcurrentExecution(concurrent);
+            if (privateStream) {
+                res.setRandomStream(masterSeed);
+            }
+            res.setExporter(exporter);
+            if (metrics != null) {
+                res.enableMetrics(metrics.isPublishingMolecules());
+            }
+            return res;
         }
         throw new IllegalStateException("Can not load a Protelis program on a " + n.getClass()
                 + ". A " + ProtelisNode.class + " is required.");
@@ -99,9 +163,335 @@ public class RunProtelisProgram extends SimpleMolecule implements Action<Object>
 
     @Override
     public void execute() {
+        if (skipIfQuiescent()) {
+            return;
+        }
+        if (vm == null) {
+            vm = new ProtelisVM(program, executionContext());
+        }
+        final long start = metrics == null ? 0 : System.nanoTime();
         vm.runCycle();
-        node.setConcentration(this, vm.getCurrentValue());
+        completeCycle(vm.getCurrentValue(), start);
+    }
+
+    private AlchemistExecutionContext executionContext() {
+        if (context == null) {
+            deriveStream();
+            context = stream == null
+                    ? new AlchemistExecutionContext(environment, node, reaction, random, concurrent, netmgr)
+                    : new AlchemistExecutionContext(environment, node, reaction, stream, false, netmgr);
+        }
+        return context;
+    }
+
+    private void deriveStream() {
+        if (privateStream && stream == null) {
+            stream = SplitMix64.derive(masterSeed, node.getId(), source.hashCode(), indexOnNode());
+        }
+    }
+
+    /**
+     * Programs only read their own node and mailbox, and can be executed
+     * concurrently with programs of other nodes, as long as the random
+     * engine they share is accessed under synchronization, and their
+     * mailboxes accept concurrent senders. Executors that run several nodes
+     * in parallel must enable this mode before running. Drawing from a
+     * private stream (see {@link #setRandomStream(long)}) never requires
+     * synchronization.
+     * 
+     * @param enabled
+     *            true if this program, or the neighbors sending to it, may be
+     *            executed concurrently with other programs
+     */
+    public void setConcurrentExecution(final boolean enabled) {
+        concurrent = enabled;
+        netmgr.setConcurrentDelivery(enabled);
+        context = null;
+        vm = null;
+        stable = false;
+    }
+
+    /**
+     * @return true if this program may be executed concurrently with programs
+     *         sharing its random engine
+     */
+    public boolean isConcurrentExecution() {
+        return concurrent;
+    }
+
+    private void completeCycle(final Object value, final long start) {
+        rounds++;
+        lastExecution = reaction.getTau().toDouble();
+        if (quiescence) {
+            stable = netmgr.isExportUnchanged() && Objects.equals(value, node.getConcentration(this));
+        }
+        node.setConcentration(this, value);
         computationalCycleComplete = true;
+        if (metrics != null) {
+            metrics.recordCycle(System.nanoTime() - start);
+        }
+        nodeVersion = node.getVersion();
+        export(value);
+    }
+
+    private void export(final Object value) {
+        if (exporter != null) {
+            exporter.export(lastExecution, node.getId(), value);
+        }
+    }
+
+    /*
+     * A round can be skipped if the last one produced the same value and
+     * export as the one before, and no input changed since.
+     */
+    private boolean skipIfQuiescent() {
+        if (quiescence && stable
+                && node.getVersion() == nodeVersion
+                && !context.dependsOnTimeOrRandomness()
+                && (!context.dependsOnGeometry() || context.isGeometryUnchanged())
+                && !netmgr.hasNeighborStateChanged()) {
+            netmgr.skipRound();
+            rounds++;
+            lastExecution = reaction.getTau().toDouble();
+            skippedRounds++;
+            computationalCycleComplete = true;
+            export(node.getConcentration(this));
+            return true;
+        }
+        if (quiescence) {
+            executionContext().resetDependencies();
+        }
+        return false;
+    }
+
+    /**
+     * Makes this program draw its random numbers from a private stream,
+     * derived from the master seed, the node id, the program source and the
+     * position of the program among those of the node, instead of the random
+     * engine of the simulation. Draws do not need
+     * synchronization, and their values do not depend on the order in which
+     * programs are executed, so parallel and sequential runs give the same
+     * results. Meant to be called before the simulation starts: the VM gets
+     * rebuilt.
+     * 
+     * @param seed
+     *            the master seed, common to all the programs of a simulation
+     */
+    public void setRandomStream(final long seed) {
+        privateStream = true;
+        masterSeed = seed;
+        stream = null;
+        vm = null;
+        context = null;
+        stable = false;
+    }
+
+    /**
+     * @return true if this program draws from a private random stream
+     */
+    public boolean hasRandomStream() {
+        return privateStream;
+    }
+
+    /*
+     * Programs with the same source on the same node get different streams
+     */
+    private int indexOnNode() {
+        final List<RunProtelisProgram> programs = node.getPrograms();
+        for (int i = 0; i < programs.size(); i++) {
+            if (programs.get(i) == this) {
+                return i;
+            }
+        }
+        return programs.size();
+    }
+
+    /**
+     * @param roundExporter
+     *            the {@link RoundExporter} receiving the value computed at
+     *            each round, or null to stop exporting. It must stay open
+     *            while this program runs
+     */
+    public void setExporter(final RoundExporter roundExporter) {
+        exporter = roundExporter;
+    }
+
+    /**
+     * @return the {@link RoundExporter} receiving the value computed at each
+     *         round, or null
+     */
+    public RoundExporter getExporter() {
+        return exporter;
+    }
+
+    /**
+     * @param threshold
+     *            how long, in simulated time, this program must stay idle
+     *            before {@link #releaseIfIdle(double)} frees its memory.
+     *            Infinite (default) means never
+     */
+    public void setIdleRelease(final double threshold) {
+        if (!(threshold >= 0)) {
+            throw new IllegalArgumentException("Invalid idle threshold: " + threshold);
+        }
+        idleThreshold = threshold;
+    }
+
+    /**
+     * @return how long, in simulated time, this program must stay idle before
+     *         its memory can be freed
+     */
+    public double getIdleRelease() {
+        return idleThreshold;
+    }
+
+    /**
+     * Frees the VM, the execution context, and the caches of the network
+     * manager, if this program did not execute for longer than the idle
+     * threshold. The state needed to resume is kept: the parsed code of this
+     * program, which holds the state of its rep and nbr constructs, the
+     * private random stream, the node value, the state to be sent, the
+     * pending messages and the retained neighbor states. Everything else is
+     * rebuilt at the next execution, which computes the same as if the
+     * program was never released. Must not be called while the program
+     * executes.
+     * 
+     * @param now
+     *            the current simulated time
+     * @return true if the memory was freed
+     */
+    public boolean releaseIfIdle(final double now) {
+        if (isLoaded() && now - lastExecution > idleThreshold) {
+            vm = null;
+            context = null;
+            stable = false;
+            netmgr.release();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the VM or the execution context of this program are in
+     *         memory
+     */
+    public boolean isLoaded() {
+        return vm != null || context != null;
+    }
+
+    /**
+     * Enables or disables quiescence detection. When enabled, a round is
+     * skipped, and the previous value and shared state are reused, if:
+     * <ul>
+     * <li>the last two rounds produced the same value and shared state;</li>
+     * <li>the last round did not read the time nor draw random numbers;</li>
+     * <li>no variable of the node changed since the last round;</li>
+     * <li>the neighbors, their positions and the states they shared did not
+     * change since the last round.</li>
+     * </ul>
+     * The state that Protelis keeps inside the VM (e.g. the values of rep
+     * constructs) can not be inspected: programs whose rep state keeps
+     * changing without affecting their value nor their shared state should
+     * not use this mode. Disabled by default.
+     * 
+     * @param enabled
+     *            true to enable quiescence detection
+     */
+    public void setQuiescenceDetection(final boolean enabled) {
+        quiescence = enabled;
+        stable = false;
+        netmgr.setQuiescenceDetection(enabled);
+    }
+
+    /**
+     * @return true if quiescence detection is enabled
+     */
+    public boolean isQuiescenceDetection() {
+        return quiescence;
+    }
+
+    /**
+     * @return the number of rounds executed or skipped
+     */
+    public long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return the number of rounds skipped by quiescence detection
+     */
+    public long getSkippedRounds() {
+        return skippedRounds;
+    }
+
+    /**
+     * @return the fraction of rounds skipped by quiescence detection
+     */
+    public double getSkippedRoundsFraction() {
+        return rounds == 0 ? 0 : (double) skippedRounds / rounds;
+    }
+
+    /**
+     * Starts recording the duration of each round, along with the network
+     * statistics of this program, in a {@link ProgramMetrics} registered in
+     * the {@link MetricsRegistry} of the environment. Metrics are
+     * disabled by default, and cost nothing in that case.
+     * 
+     * @param molecules
+     *            true if the last value of each metric should also be written
+     *            on the node, so that it can be exported. The molecules are
+     *            named by {@link ProgramMetrics#moleculeName(String, String)},
+     *            and written when the contents of the node are read
+     */
+    public void enableMetrics(final boolean molecules) {
+        metrics = new ProgramMetrics(node.getId(), program.getName(), molecules);
+        MetricsRegistry.of(environment).register(metrics);
+        netmgr.setMetrics(metrics);
+        node.setMetrics(this, metrics);
+    }
+
+    /**
+     * Stops recording metrics.
+     */
+    public void disableMetrics() {
+        metrics = null;
+        netmgr.setMetrics(null);
+        node.setMetrics(this, null);
+    }
+
+    /**
+     * Writes the last value of each metric on the node right away. Rounds do
+     * not do it, as it would allocate and change the node at every round,
+     * and the node does it anyway when its contents are read.
+     * 
+     * @return true if metrics are enabled, with molecules
+     */
+    public boolean publishMetrics() {
+        return metrics != null && metrics.publish(node);
+    }
+
+    /**
+     * @return the metrics of this program, if enabled
+     */
+    public Optional<ProgramMetrics> getMetrics() {
+        return Optional.ofNullable(metrics);
+    }
+
+    /**
+     * @return the generator this program draws from: its private stream, if
+     *         it has one, or the random engine of the simulation, shared with
+     *         the other programs
+     */
+    public RandomGenerator getRandomGenerator() {
+        deriveStream();
+        return stream == null ? random : stream;
+    }
+
+    /**
+     * @return the source this program was parsed from
+     */
+    public String getSource() {
+        return source;
     }
 
     /**
@@ -118,12 +508,28 @@ public class RunProtelisProgram extends SimpleMolecule implements Action<Object>
         return node;
     }
 
+    /**
+     * The molecules written by the program are found by a
+     * {@link it.unibo.alchemist.protelis.ProgramAnalysis} of its source. If it
+     * can not tell, the program may modify any molecule (global variable),
+     * and null is returned.
+     * 
+     * @return this program and the variables it writes, or null if unknown
+     */
     @Override
     public List<? extends Molecule> getModifiedMolecules() {
-        /*
-         * A Protelis program may modify any molecule (global variable)
-         */
-        return null;
+        if (modified == null) {
+            final ProtelisIncarnation incarnation = ProtelisIncarnation.instance();
+            final Optional<Set<String>> writes = incarnation.getProgramRegistry().getAnalysis(source).getWrites();
+            if (!writes.isPresent()) {
+                return null;
+            }
+            final List<Molecule> res = new ArrayList<>(writes.get().size() + 1);
+            res.add(this);
+            writes.get().forEach(name -> res.add(incarnation.createMolecule(name)));
+            modified = Collections.unmodifiableList(res);
+        }
+        return modified;
     }
 
     @Override
@@ -148,11 +554,81 @@ public class RunProtelisProgram extends SimpleMolecule implements Action<Object>
         this.computationalCycleComplete = false;
     }
 
+    /**
+     * Writes the state of this program that is not visible from the node:
+     * the parsed code, holding the state of its rep and nbr constructs, the
+     * state of the private random stream, the computation status and the
+     * round counters.
+     * 
+     * @param out
+     *            where to write the state, as done by
+     *            {@link it.unibo.alchemist.protelis.Checkpoint}
+     * @throws IOException
+     *             if the state can not be written
+     */
+    public void writeState(final ObjectOutput out) throws IOException {
+        out.writeObject(program);
+        out.writeBoolean(privateStream);
+        out.writeLong(masterSeed);
+        out.writeBoolean(stream != null);
+        if (stream != null) {
+            out.writeLong(stream.getState());
+        }
+        out.writeBoolean(computationalCycleComplete);
+        out.writeLong(rounds);
+        out.writeLong(skippedRounds);
+        out.writeDouble(lastExecution);
+    }
+
+    /**
+     * Restores the state written by {@link #writeState(ObjectOutput)} from a
+     * program with the same source. The next round continues from it.
+     * 
+     * @param in
+     *            where to read the state from
+     * @throws IOException
+     *             if the state can not be read
+     * @throws ClassNotFoundException
+     *             if the state refers to classes that can not be found
+     */
+    public void readState(final ObjectInput in) throws IOException, ClassNotFoundException {
+        program = (org.protelis.vm.ProtelisProgram) in.readObject();
+        privateStream = in.readBoolean();
+        masterSeed = in.readLong();
+        stream = in.readBoolean() ? new SplitMix64(in.readLong()) : null;
+        computationalCycleComplete = in.readBoolean();
+        rounds = in.readLong();
+        skippedRounds = in.readLong();
+        lastExecution = in.readDouble();
+        stable = false;
+        vm = null;
+        context = null;
+    }
+
+    /*
+     * The network manager is rebuilt when read: only its settings are
+     * written, the messages in flight are not
+     */
+    private void writeObject(final ObjectOutputStream stream) throws IOException {
+        stream.defaultWriteObject();
+        stream.writeBoolean(netmgr.isDeltaEncoding());
+        stream.writeDouble(netmgr.getRetentionTime());
+        stream.writeBoolean(netmgr.isCompactEncoding());
+        stream.writeBoolean(netmgr.isWireEncoding());
+    }
+
     private void readObject(final ObjectInputStream stream) throws ClassNotFoundException, IOException {
         stream.defaultReadObject();
-        final AlchemistNetworkManager netmgr = new AlchemistNetworkManager(environment, node, this);
+        netmgr = new AlchemistNetworkManager(environment, node, reaction, this);
+        netmgr.setDeltaEncoding(stream.readBoolean());
+        netmgr.setRetentionTime(stream.readDouble());
+        netmgr.setCompactEncoding(stream.readBoolean());
+        netmgr.setWireEncoding(stream.readBoolean());
+        netmgr.setMetrics(metrics);
+        netmgr.setQuiescenceDetection(quiescence);
+        netmgr.setConcurrentDelivery(concurrent);
+        stable = false;
         node.addNetworkManger(this, netmgr);
-        vm = new ProtelisVM(program, new AlchemistExecutionContext(environment, node, reaction, random, netmgr));
     }
 
 }
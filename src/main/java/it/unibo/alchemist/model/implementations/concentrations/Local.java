@@ -31,18 +31,100 @@ public class Local implements Concentration<Object> {
      *            the concentration value
      */
     public Local(final Object t) {
-        Object temp = t;
-        if (t instanceof String) {
-            final String ts = (String) t;
-            try {
-                temp = Double.parseDouble(ts);
-            } catch (NumberFormatException e) {
-                if (ts.equalsIgnoreCase("true") || ts.equalsIgnoreCase("false")) {
-                    temp = Boolean.parseBoolean(ts);
-                }
+        content = t instanceof String ? parse((String) t) : t;
+    }
+
+    /**
+     * Converts a {@link String} to a {@link Double} or a {@link Boolean}, if
+     * it represents one. Strings are scanned against the syntax accepted by
+     * {@link Double#valueOf(String)} before being parsed, so that invalid
+     * numbers never throw exceptions.
+     * 
+     * @param s
+     *            the {@link String}
+     * @return a {@link Double}, a {@link Boolean}, or s itself
+     */
+    public static Object parse(final String s) {
+        final String trimmed = s.trim();
+        if (isNumber(trimmed)) {
+            return Double.parseDouble(trimmed);
+        }
+        if (s.equalsIgnoreCase("true")) {
+            return Boolean.TRUE;
+        }
+        if (s.equalsIgnoreCase("false")) {
+            return Boolean.FALSE;
+        }
+        return s;
+    }
+
+    /*
+     * Whether s, already trimmed, is a floating point literal as accepted by
+     * Double.valueOf: signed NaN, Infinity, decimal or hexadecimal numbers,
+     * with an optional type suffix.
+     */
+    private static boolean isNumber(final String s) {
+        final int length = s.length();
+        int i = 0;
+        if (i < length && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+            i++;
+        }
+        if (s.startsWith("NaN", i)) {
+            return i + "NaN".length() == length;
+        }
+        if (s.startsWith("Infinity", i)) {
+            return i + "Infinity".length() == length;
+        }
+        final boolean hex = s.startsWith("0x", i) || s.startsWith("0X", i);
+        if (hex) {
+            i += 2;
+        }
+        final int integerStart = i;
+        i = skipDigits(s, i, hex);
+        int digits = i - integerStart;
+        if (i < length && s.charAt(i) == '.') {
+            final int fractionStart = ++i;
+            i = skipDigits(s, i, hex);
+            digits += i - fractionStart;
+        }
+        if (digits == 0) {
+            return false;
+        }
+        if (i < length && Character.toLowerCase(s.charAt(i)) == (hex ? 'p' : 'e')) {
+            i++;
+            if (i < length && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                i++;
+            }
+            final int exponentStart = i;
+            i = skipDigits(s, i, false);
+            if (i == exponentStart) {
+                return false;
             }
+        } else if (hex) {
+            /*
+             * Hexadecimal numbers require the binary exponent
+             */
+            return false;
+        }
+        if (i < length && "fFdD".indexOf(s.charAt(i)) >= 0) {
+            i++;
         }
-        content = temp;
+        return i == length;
+    }
+
+    private static int skipDigits(final String s, final int from, final boolean hex) {
+        int i = from;
+        while (i < s.length() && isDigit(s.charAt(i), hex)) {
+            i++;
+        }
+        return i;
+    }
+
+    /*
+     * ASCII digits only: Character.isDigit also accepts other scripts
+     */
+    private static boolean isDigit(final char c, final boolean hex) {
+        return c >= '0' && c <= '9' || hex && (c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F');
     }
 
     @Override
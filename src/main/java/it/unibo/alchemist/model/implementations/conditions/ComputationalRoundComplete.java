@@ -52,6 +52,13 @@ public class ComputationalRoundComplete extends AbstractCondition<Object> {
         return program.isComputationalCycleComplete();
     }
 
+    /**
+     * @return the {@link RunProtelisProgram} whose completion is checked
+     */
+    public RunProtelisProgram getProtelisProgram() {
+        return program;
+    }
+
     @Override
     public ProtelisNode getNode() {
         return (ProtelisNode) super.getNode();
@@ -8,10 +8,17 @@
  */
 package it.unibo.alchemist.model.implementations.nodes;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
 
 import org.protelis.lang.datatype.DeviceUID;
 import org.protelis.vm.ExecutionEnvironment;
@@ -19,25 +26,106 @@ import org.protelis.vm.NetworkManager;
 
 import it.unibo.alchemist.model.ProtelisIncarnation;
 import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.actions.SendToNeighbor;
+import it.unibo.alchemist.model.implementations.conditions.ComputationalRoundComplete;
+import it.unibo.alchemist.model.implementations.molecules.SimpleMolecule;
+import it.unibo.alchemist.model.implementations.reactions.BatchReaction;
+import it.unibo.alchemist.model.interfaces.Action;
+import it.unibo.alchemist.model.interfaces.Condition;
 import it.unibo.alchemist.model.interfaces.Environment;
 import it.unibo.alchemist.model.interfaces.Molecule;
+import it.unibo.alchemist.model.interfaces.Reaction;
 import it.unibo.alchemist.protelis.AlchemistNetworkManager;
+import it.unibo.alchemist.protelis.MoleculeTable;
+import it.unibo.alchemist.protelis.ProgramMetrics;
 
 /**
  */
 public class ProtelisNode extends GenericNode<Object>implements DeviceUID, ExecutionEnvironment {
 
     private static final long serialVersionUID = 7411790948884770553L;
-    private final Map<RunProtelisProgram, AlchemistNetworkManager> netmgrs = new ConcurrentHashMap<>();
+    private static final MoleculeTable MOLECULES = ProtelisIncarnation.instance().getMoleculeTable();
+    private static final Object ABSENT = new Object();
+    private static final Object NUMBER = new Object();
+    private static final Object[] NO_SLOTS = new Object[0];
+    private static final double[] NO_NUMBERS = new double[0];
+    /*
+     * Index of the programs of this node, with their network managers and the
+     * number of installed reactions running them, sending their state and
+     * checking their completion. Nodes host very few programs, so a linear
+     * scan of an array is the fastest lookup. The array is copied on write,
+     * as neighbors may look up managers concurrently.
+     */
+    private volatile ProgramEntry[] programs = new ProgramEntry[0];
+    private final boolean slotIndexed;
+    private final boolean primitiveNumbers;
+    /*
+     * Values of the interned molecules, indexed by slot. It mirrors the
+     * contents of the node, and gets rebuilt after deserialization. It starts
+     * empty and only grows up to the highest slot written in this node, so
+     * that nodes do not pay for the whole molecule table. Plain
+     * molecules are interned when written; other molecules, and names
+     * interned after being written, are only found in the contents, which
+     * are checked whenever a slot is absent. With primitive numbers, Double
+     * values are not stored in the contents of the node nor boxed: their slot
+     * holds the NUMBER marker, numbers holds the value, and it is boxed again
+     * when read as an object.
+     */
+    private transient Object[] slots;
+    private transient double[] numbers;
+    private transient int numbersCount;
+    private long version;
 
     /**
-     * Builds a new {@link ProtelisNode}.
+     * Builds a new {@link ProtelisNode}, storing its variables in slots.
      * 
      * @param env
      *            the environment
      */
     public ProtelisNode(final Environment<?> env) {
+        this(env, true);
+    }
+
+    /**
+     * Builds a new {@link ProtelisNode}.
+     * 
+     * @param env
+     *            the environment
+     * @param slotIndexed
+     *            if true, the variables accessed by Protelis are also stored
+     *            in an array indexed by their {@link MoleculeTable} slot, so
+     *            that reading them costs an array access. The array grows
+     *            lazily, up to the highest slot written in the node
+     */
+    public ProtelisNode(final Environment<?> env, final boolean slotIndexed) {
+        this(env, slotIndexed, false);
+    }
+
+    /**
+     * Builds a new {@link ProtelisNode}.
+     * 
+     * @param env
+     *            the environment
+     * @param slotIndexed
+     *            if true, the variables accessed by Protelis are also stored
+     *            in an array indexed by their {@link MoleculeTable} slot, so
+     *            that reading them costs an array access. The array grows
+     *            lazily, up to the highest slot written in the node
+     * @param primitiveNumbers
+     *            if true, {@link Double} variables are not stored in the
+     *            contents map, but only unboxed in a primitive array, read
+     *            without allocating by
+     *            {@link #getNumericConcentration(Molecule)}. Reading them as
+     *            objects returns equal, but new, {@link Double}s. Requires
+     *            slotIndexed
+     */
+    public ProtelisNode(final Environment<?> env, final boolean slotIndexed, final boolean primitiveNumbers) {
         super(env);
+        if (primitiveNumbers && !slotIndexed) {
+            throw new IllegalArgumentException("Primitive numbers require slot indexing");
+        }
+        this.slotIndexed = slotIndexed;
+        this.primitiveNumbers = primitiveNumbers;
     }
 
     /**
@@ -49,6 +137,8 @@ public class ProtelisNode extends GenericNode<Object>implements DeviceUID, Execu
     @Deprecated
     public ProtelisNode() {
         super(true);
+        slotIndexed = false;
+        primitiveNumbers = false;
     }
 
     @Override
@@ -70,7 +160,21 @@ public class ProtelisNode extends GenericNode<Object>implements DeviceUID, Execu
      *            the {@link AlchemistNetworkManager}
      */
     public void addNetworkManger(final RunProtelisProgram program, final AlchemistNetworkManager netmgr) {
-        netmgrs.put(program, netmgr);
+        entry(program).netmgr = netmgr;
+    }
+
+    /**
+     * Sets the metrics of a program, whose molecules are published whenever
+     * the contents of this node are read from outside of the program, e.g.
+     * by an exporter.
+     * 
+     * @param program
+     *            the {@link RunProtelisProgram}
+     * @param metrics
+     *            its {@link ProgramMetrics}, or null if disabled
+     */
+    public void setMetrics(final RunProtelisProgram program, final ProgramMetrics metrics) {
+        entry(program).metrics = metrics;
     }
 
     /**
@@ -81,38 +185,422 @@ public class ProtelisNode extends GenericNode<Object>implements DeviceUID, Execu
      */
     public AlchemistNetworkManager getNetworkManager(final RunProtelisProgram program) {
         Objects.requireNonNull(program);
-        return netmgrs.get(program);
+        final ProgramEntry entry = find(program);
+        return entry == null ? null : entry.netmgr;
+    }
+
+    /**
+     * @return the programs installed on this node
+     */
+    public List<RunProtelisProgram> getPrograms() {
+        return installedWithout(e -> 0);
     }
 
-    private static Molecule makeMol(final String id) {
-        return ProtelisIncarnation.instance().createMolecule(id);
+    /**
+     * @return the programs installed on this node that have no
+     *         {@link SendToNeighbor} action yet
+     */
+    public List<RunProtelisProgram> getProgramsWithoutSend() {
+        return installedWithout(e -> e.sends);
+    }
+
+    /**
+     * @return the programs installed on this node that have no
+     *         {@link ComputationalRoundComplete} condition yet
+     */
+    public List<RunProtelisProgram> getProgramsWithoutCompletionCheck() {
+        return installedWithout(e -> e.checks);
+    }
+
+    private List<RunProtelisProgram> installedWithout(final ToIntFunction<ProgramEntry> counter) {
+        final List<RunProtelisProgram> res = new ArrayList<>(1);
+        for (final ProgramEntry entry : programs) {
+            if (entry.installed > 0 && counter.applyAsInt(entry) == 0) {
+                res.add(entry.program);
+            }
+        }
+        return res;
+    }
+
+    private ProgramEntry find(final RunProtelisProgram program) {
+        for (final ProgramEntry entry : programs) {
+            if (entry.program == program) {
+                return entry;
+            }
+        }
+        /*
+         * Neighbors look up their own instance of the program
+         */
+        for (final ProgramEntry entry : programs) {
+            if (entry.program.equals(program)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private synchronized ProgramEntry entry(final RunProtelisProgram program) {
+        final ProgramEntry existing = find(program);
+        if (existing != null) {
+            return existing;
+        }
+        final ProgramEntry res = new ProgramEntry(program);
+        final ProgramEntry[] extended = Arrays.copyOf(programs, programs.length + 1);
+        extended[programs.length] = res;
+        programs = extended;
+        return res;
+    }
+
+    @Override
+    public void addReaction(final Reaction<Object> r) {
+        super.addReaction(r);
+        index(r, 1);
+    }
+
+    @Override
+    public void removeReaction(final Reaction<Object> r) {
+        super.removeReaction(r);
+        index(r, -1);
+    }
+
+    /**
+     * Removes a reaction from those scheduled by the simulator, leaving its
+     * programs installed on this node. To be used when the reaction is run
+     * by another one, such as a {@link BatchReaction} hosted by another node.
+     * 
+     * @param r
+     *            the reaction
+     */
+    public void detachReaction(final Reaction<Object> r) {
+        super.removeReaction(r);
+    }
+
+    private void index(final Reaction<Object> r, final int delta) {
+        if (r instanceof BatchReaction) {
+            for (final Reaction<Object> member : ((BatchReaction) r).getMembers()) {
+                if (member.getNode() == this) {
+                    index(member, delta);
+                }
+            }
+            return;
+        }
+        for (final Action<Object> action : r.getActions()) {
+            if (action instanceof RunProtelisProgram) {
+                final ProgramEntry entry = entry((RunProtelisProgram) action);
+                entry.program = (RunProtelisProgram) action;
+                entry.installed += delta;
+            } else if (action instanceof SendToNeighbor) {
+                entry(((SendToNeighbor) action).getProtelisProgram()).sends += delta;
+            }
+        }
+        for (final Condition<Object> condition : r.getConditions()) {
+            if (condition instanceof ComputationalRoundComplete) {
+                entry(((ComputationalRoundComplete) condition).getProtelisProgram()).checks += delta;
+            }
+        }
+    }
+
+    /**
+     * @return true if the variables of this node are stored in slots
+     */
+    public boolean isSlotIndexed() {
+        return slotIndexed;
+    }
+
+    /**
+     * @return a counter incremented at every change of the contents of this
+     *         node
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if {@link Double} variables are stored out of the
+     *         contents map, and also unboxed
+     */
+    public boolean isPrimitiveNumbers() {
+        return primitiveNumbers;
+    }
+
+    @Override
+    public void setConcentration(final Molecule mol, final Object c) {
+        if (slotIndexed) {
+            final int index = slotOf(mol);
+            if (index >= 0) {
+                final Object previous = readSlot(index);
+                if (primitiveNumbers && c instanceof Double) {
+                    if (!isNumber(previous)) {
+                        if (previous != ABSENT) {
+                            super.removeConcentration(mol);
+                        }
+                        numbersCount++;
+                    }
+                    writeSlot(index, NUMBER);
+                    numbers[index] = (Double) c;
+                    version++;
+                    return;
+                }
+                if (isNumber(previous)) {
+                    numbersCount--;
+                }
+                writeSlot(index, c);
+            }
+        }
+        super.setConcentration(mol, c);
+        version++;
+    }
+
+    /*
+     * Whether a slot value is only stored unboxed
+     */
+    private static boolean isNumber(final Object value) {
+        return value == NUMBER;
+    }
+
+    /*
+     * The object stored in a slot, boxing numbers
+     */
+    private Object box(final int index, final Object value) {
+        return isNumber(value) ? Double.valueOf(numbers[index]) : value;
+    }
+
+    private static int slotOf(final Molecule mol) {
+        final int index = MOLECULES.indexOf(mol);
+        if (index < 0 && mol.getClass() == SimpleMolecule.class) {
+            return MOLECULES.intern(mol.toString()).getIndex();
+        }
+        return index;
+    }
+
+    @Override
+    public void removeConcentration(final Molecule mol) {
+        if (slotIndexed) {
+            final int index = MOLECULES.indexOf(mol);
+            if (index >= 0) {
+                final Object previous = readSlot(index);
+                writeSlot(index, ABSENT);
+                if (isNumber(previous)) {
+                    numbersCount--;
+                    version++;
+                    return;
+                }
+            }
+        }
+        super.removeConcentration(mol);
+        version++;
+    }
+
+    /*
+     * Writes the metrics molecules of the programs, all of them if mol is
+     * null. Publishing is not a change the programs should react to, so the
+     * version is left untouched.
+     */
+    private void publishMetrics(final Molecule mol) {
+        for (final ProgramEntry entry : programs) {
+            final ProgramMetrics metrics = entry.metrics;
+            if (metrics != null && metrics.isPublishingMolecules() && (mol == null || metrics.isPublishedAs(mol))) {
+                final long current = version;
+                metrics.publish(this);
+                version = current;
+            }
+        }
+    }
+
+    @Override
+    public Object getConcentration(final Molecule mol) {
+        publishMetrics(mol);
+        if (numbersCount > 0) {
+            final int index = MOLECULES.indexOf(mol);
+            if (index >= 0) {
+                final Object res = readSlot(index);
+                if (isNumber(res)) {
+                    return numbers[index];
+                }
+            }
+        }
+        return super.getConcentration(mol);
+    }
+
+    /**
+     * Reads a variable as a number, without boxing it if it is stored as a
+     * primitive. Booleans are converted to 1 and 0.
+     * 
+     * @param mol
+     *            the {@link Molecule}
+     * @return the value of the variable, or NaN if it is absent or not a
+     *         number
+     */
+    public double getNumericConcentration(final Molecule mol) {
+        if (numbersCount > 0) {
+            final int index = MOLECULES.indexOf(mol);
+            if (index >= 0 && isNumber(readSlot(index))) {
+                return numbers[index];
+            }
+        }
+        final Object value = super.getConcentration(mol);
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        return Double.NaN;
+    }
+
+    @Override
+    public boolean contains(final Molecule mol) {
+        publishMetrics(mol);
+        if (numbersCount > 0) {
+            final int index = MOLECULES.indexOf(mol);
+            if (index >= 0 && isNumber(readSlot(index))) {
+                return true;
+            }
+        }
+        return super.contains(mol);
+    }
+
+    @Override
+    public int getChemicalSpecies() {
+        return super.getChemicalSpecies() + numbersCount;
+    }
+
+    @Override
+    public Map<Molecule, Object> getContents() {
+        publishMetrics(null);
+        if (numbersCount == 0) {
+            return super.getContents();
+        }
+        final Map<Molecule, Object> res = new LinkedHashMap<>(super.getContents());
+        final Object[] values = getSlots();
+        for (int index = 0; index < values.length; index++) {
+            if (isNumber(values[index])) {
+                res.put(MOLECULES.getSlot(index).getMolecule(), numbers[index]);
+            }
+        }
+        return res;
+    }
+
+    private Object readSlot(final int index) {
+        final Object[] values = getSlots();
+        return index < values.length ? values[index] : ABSENT;
+    }
+
+    private void writeSlot(final int index, final Object value) {
+        Object[] values = getSlots();
+        if (index >= values.length) {
+            final int oldLength = values.length;
+            values = Arrays.copyOf(values, Math.max(index + 1, Math.min(oldLength * 2, MOLECULES.size())));
+            Arrays.fill(values, oldLength, values.length, ABSENT);
+            slots = values;
+            if (primitiveNumbers) {
+                numbers = Arrays.copyOf(numbers, values.length);
+            }
+        }
+        values[index] = value;
+    }
+
+    private Object[] getSlots() {
+        if (slots == null) {
+            slots = NO_SLOTS;
+            if (primitiveNumbers) {
+                numbers = NO_NUMBERS;
+            }
+            final List<Molecule> unboxed = new ArrayList<>();
+            for (final Map.Entry<Molecule, Object> content : super.getContents().entrySet()) {
+                final int index = MOLECULES.indexOf(content.getKey());
+                if (index >= 0) {
+                    final Object value = content.getValue();
+                    if (primitiveNumbers && value instanceof Double) {
+                        writeSlot(index, NUMBER);
+                        numbers[index] = (Double) value;
+                        unboxed.add(content.getKey());
+                    } else {
+                        writeSlot(index, value);
+                    }
+                }
+            }
+            /*
+             * Numbers written before their molecule was interned leave the
+             * contents map
+             */
+            unboxed.forEach(super::removeConcentration);
+            numbersCount += unboxed.size();
+        }
+        return slots;
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        /*
+         * Slots are process-local: numbers are written along with the name
+         * of their molecule
+         */
+        out.writeInt(numbersCount);
+        if (numbersCount > 0) {
+            final Object[] values = getSlots();
+            for (int index = 0; index < values.length; index++) {
+                if (isNumber(values[index])) {
+                    out.writeUTF(MOLECULES.getSlot(index).getName());
+                    out.writeDouble(numbers[index]);
+                }
+            }
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        final long savedVersion = version;
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            setConcentration(MOLECULES.intern(in.readUTF()).getMolecule(), in.readDouble());
+        }
+        version = savedVersion;
     }
 
     @Override
     public boolean has(final String id) {
-        return contains(makeMol(id));
+        final MoleculeTable.Slot slot = MOLECULES.find(id);
+        if (slot != null && slotIndexed && readSlot(slot.getIndex()) != ABSENT) {
+            return true;
+        }
+        return super.contains(slot == null ? new SimpleMolecule(id) : slot.getMolecule());
     }
 
     @Override
     public Object get(final String id) {
-        return getConcentration(makeMol(id));
+        final MoleculeTable.Slot slot = MOLECULES.find(id);
+        if (slot != null && slotIndexed) {
+            final int index = slot.getIndex();
+            final Object res = readSlot(index);
+            if (res != ABSENT) {
+                return box(index, res);
+            }
+        }
+        /*
+         * Reading does not intern: names never written are looked up in the
+         * contents
+         */
+        return super.getConcentration(slot == null ? new SimpleMolecule(id) : slot.getMolecule());
     }
 
     @Override
     public Object get(final String id, final Object defaultValue) {
-        return Optional.ofNullable(get(id)).orElse(defaultValue);
+        final Object res = get(id);
+        return res == null ? defaultValue : res;
     }
 
     @Override
     public boolean put(final String id, final Object v) {
-        setConcentration(makeMol(id), v);
+        setConcentration(MOLECULES.intern(id).getMolecule(), v);
         return true;
     }
 
     @Override
     public Object remove(final String id) {
         final Object res = get(id);
-        removeConcentration(makeMol(id));
+        final MoleculeTable.Slot slot = MOLECULES.find(id);
+        removeConcentration(slot == null ? new SimpleMolecule(id) : slot.getMolecule());
         return res;
     }
 
@@ -120,6 +608,20 @@ public class ProtelisNode extends GenericNode<Object>implements DeviceUID, Execu
     public void commit() {
     }
 
+    private static final class ProgramEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private RunProtelisProgram program;
+        private volatile AlchemistNetworkManager netmgr;
+        private volatile ProgramMetrics metrics;
+        private int installed;
+        private int sends;
+        private int checks;
+
+        ProgramEntry(final RunProtelisProgram program) {
+            this.program = program;
+        }
+    }
+
     @Override
     public void setup() {
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.model.implementations.reactions;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.model.interfaces.Time;
+import it.unibo.alchemist.model.interfaces.TimeDistribution;
+import it.unibo.alchemist.protelis.SynchronousRounds;
+
+/**
+ * A single scheduled event that runs the Protelis reactions of many nodes
+ * sharing the same time distribution, as a {@link SynchronousRounds} step:
+ * first all the programs, then all the sends, of the members whose
+ * conditions hold. Member reactions are not scheduled by the simulator: they
+ * are updated along with this reaction, so that their time stays aligned
+ * with it. The members hosted by the node of this reaction are installed on
+ * it through this reaction, see
+ * {@link it.unibo.alchemist.model.implementations.nodes.ProtelisNode}.
+ *
+ * This reaction does not declare the molecules its members modify, so
+ * reactions that are not members and read them are not rescheduled when it
+ * executes: the sends of the programs must be members too, or be scheduled
+ * by time alone.
+ */
+public final class BatchReaction extends AbstractReaction<Object> {
+
+    private static final long serialVersionUID = 1L;
+    private final List<Reaction<Object>> members;
+    private transient ForkJoinPool pool;
+    private transient SynchronousRounds rounds;
+
+    /**
+     * @param host
+     *            the node hosting this reaction
+     * @param time
+     *            the {@link TimeDistribution}, equal to that of the members
+     * @param members
+     *            the reactions to run, in the order they should run. They
+     *            must not be scheduled by the simulator
+     * @param pool
+     *            the {@link ForkJoinPool} where members are executed, or null
+     *            for a sequential execution
+     */
+    public BatchReaction(final Node<Object> host, final TimeDistribution<Object> time,
+            final List<? extends Reaction<Object>> members, final ForkJoinPool pool) {
+        super(host, time);
+        this.members = new ArrayList<>(members);
+        this.pool = pool;
+    }
+
+    @Override
+    public void execute() {
+        if (rounds == null) {
+            rounds = new SynchronousRounds(members, pool);
+        }
+        rounds.step();
+    }
+
+    @Override
+    protected void updateInternalStatus(final Time curTime, final boolean executed, final Environment<Object> env) {
+        for (final Reaction<Object> member : members) {
+            member.update(curTime, executed, env);
+        }
+    }
+
+    @Override
+    public double getRate() {
+        return getTimeDistribution().getRate();
+    }
+
+    /**
+     * @return the reactions run by this batch
+     */
+    public List<Reaction<Object>> getMembers() {
+        return Collections.unmodifiableList(members);
+    }
+
+    /**
+     * Clones the members hosted by the node of this reaction, and runs them
+     * in a new batch with the same time distribution. The members of other
+     * nodes are not cloned, as they are not part of the cloned node.
+     * 
+     * @param n
+     *            the node
+     * @return a batch running the clones of the local members on the node
+     */
+    @Override
+    public BatchReaction cloneOnNewNode(final Node<Object> n) {
+        final List<Reaction<Object>> clones = new ArrayList<>();
+        for (final Reaction<Object> member : members) {
+            if (member.getNode() == getNode()) {
+                clones.add(member.cloneOnNewNode(n));
+            }
+        }
+        return new BatchReaction(n, getTimeDistribution().clone(), clones, pool);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(" + members.size() + " reactions)@" + getTau();
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.model.implementations.timedistributions;
+
+import java.util.Objects;
+
+import it.unibo.alchemist.model.interfaces.Time;
+
+/**
+ * A {@link DiracComb} whose next occurrence can be set, so that a checkpoint
+ * can put it back at its saved time in a single step.
+ *
+ * @param <T>
+ *            concentration type
+ */
+public class RestorableDiracComb<T> extends DiracComb<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param start
+     *            the first occurrence
+     * @param rate
+     *            how many occurrences per time unit
+     */
+    public RestorableDiracComb(final Time start, final double rate) {
+        super(start, rate);
+    }
+
+    /**
+     * @param next
+     *            the next occurrence. The following ones are one period apart
+     */
+    public void setNextOccurrence(final Time next) {
+        setTau(Objects.requireNonNull(next));
+    }
+
+    @Override
+    public RestorableDiracComb<T> clone() {
+        return new RestorableDiracComb<>(getNextOccurence(), getRate());
+    }
+
+}
@@ -3,8 +3,13 @@
  */
 package it.unibo.alchemist.protelis;
 
+import java.util.Arrays;
+import java.util.Optional;
+
 import org.danilopianini.lang.HashUtils;
+import org.protelis.lang.datatype.DatatypeFactory;
 import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.lang.datatype.Field;
 import org.protelis.lang.datatype.Tuple;
 import org.protelis.vm.ExecutionEnvironment;
 import org.protelis.vm.impl.AbstractExecutionContext;
@@ -14,6 +19,7 @@ import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
 import it.unibo.alchemist.model.implementations.positions.LatLongPosition;
 import it.unibo.alchemist.model.interfaces.Environment;
 import it.unibo.alchemist.model.interfaces.IMapEnvironment;
+import it.unibo.alchemist.model.interfaces.Neighborhood;
 import it.unibo.alchemist.model.interfaces.Node;
 import it.unibo.alchemist.model.interfaces.Position;
 import it.unibo.alchemist.model.interfaces.Reaction;
@@ -26,7 +32,40 @@ public class AlchemistExecutionContext extends AbstractExecutionContext {
     private final Environment<Object> env;
     private final Reaction<Object> react;
     private final RandomGenerator rand;
+    private final boolean sharedRandom;
+    private final AlchemistNetworkManager netmgr;
+    /*
+     * The context of the round, which records the dependencies of the
+     * contexts it instances for function calls
+     */
+    private final AlchemistExecutionContext root;
     private int hash;
+    /*
+     * What the last round depended on, besides neighbors and variables
+     */
+    private boolean usedTime;
+    private boolean usedRandom;
+    private boolean usedGeometry;
+    /*
+     * Geometry of the neighborhood, computed at most once per round. Index 0
+     * is the local device.
+     */
+    private long geometryRound = -1;
+    private Position position;
+    private int dimensions;
+    private int devices;
+    private ProtelisNode[] ids = new ProtelisNode[0];
+    private double[] distances = new double[0];
+    private double[] vectors = new double[0];
+    private Position[] positions = new Position[0];
+    /*
+     * Indices of the devices aligned with the local one in this round, and
+     * the fields built on them, which are reused for the rest of the round
+     */
+    private int[] aligned = new int[0];
+    private int alignedDevices;
+    private Field range;
+    private Field vector;
 
     /**
      * @param environment
@@ -36,17 +75,50 @@ public class AlchemistExecutionContext extends AbstractExecutionContext {
      * @param reaction
      *            the {@link Reaction} hosting the program
      * @param random
-     *            the {@link RandomGenerator} for this simulation
+     *            the {@link RandomGenerator} for this simulation, accessed
+     *            by one device at a time
      * @param netmgr
      *            the {@link AlchemistNetworkManager} to be used
      */
     public AlchemistExecutionContext(final Environment<Object> environment, final ProtelisNode localNode,
             final Reaction<Object> reaction, final RandomGenerator random, final AlchemistNetworkManager netmgr) {
+        this(environment, localNode, reaction, random, false, netmgr);
+    }
+
+    /**
+     * @param environment
+     *            the simulation {@link Environment}
+     * @param localNode
+     *            the local {@link ProtelisNode}
+     * @param reaction
+     *            the {@link Reaction} hosting the program
+     * @param random
+     *            the {@link RandomGenerator} to draw from
+     * @param shared
+     *            true if random is shared with devices running concurrently,
+     *            and must be accessed under synchronization. False if it is
+     *            owned by this device, such as a {@link SplitMix64} stream,
+     *            or if devices run one at a time
+     * @param netmgr
+     *            the {@link AlchemistNetworkManager} to be used
+     */
+    public AlchemistExecutionContext(final Environment<Object> environment, final ProtelisNode localNode,
+            final Reaction<Object> reaction, final RandomGenerator random, final boolean shared,
+            final AlchemistNetworkManager netmgr) {
+        this(environment, localNode, reaction, random, shared, netmgr, null);
+    }
+
+    private AlchemistExecutionContext(final Environment<Object> environment, final ProtelisNode localNode,
+            final Reaction<Object> reaction, final RandomGenerator random, final boolean shared,
+            final AlchemistNetworkManager netmgr, final AlchemistExecutionContext root) {
         super(localNode, netmgr);
         env = environment;
         node = localNode;
         react = reaction;
         rand = random;
+        sharedRandom = shared;
+        this.netmgr = netmgr;
+        this.root = root == null ? this : root;
     }
 
     @Override
@@ -56,6 +128,7 @@ public class AlchemistExecutionContext extends AbstractExecutionContext {
 
     @Override
     public Number getCurrentTime() {
+        root.usedTime = true;
         return react.getTau().toDouble();
     }
 
@@ -69,6 +142,7 @@ public class AlchemistExecutionContext extends AbstractExecutionContext {
      */
     public double distanceTo(final DeviceUID target) {
         assert target instanceof ProtelisNode;
+        updateGeometry();
         return env.getDistanceBetweenNodes(node, (ProtelisNode) target);
     }
 
@@ -76,17 +150,183 @@ public class AlchemistExecutionContext extends AbstractExecutionContext {
      * @return the device position, in form of {@link Position}
      */
     public Position getDevicePosition() {
-        return env.getPosition(node);
+        updateGeometry();
+        return position;
+    }
+
+    /**
+     * Computes the distances to the aligned neighbors in a single pass. The
+     * domain is the same as the one of the fields built by nbr: the local
+     * device, and the neighbors whose state was received in this round (see
+     * {@link AlchemistNetworkManager#isAligned(DeviceUID)}). The result is
+     * cached for the rest of the round.
+     * 
+     * @return a {@link Field} with the distance to each aligned neighbor, and
+     *         zero for the local device
+     */
+    public Field nbrRange() {
+        updateGeometry();
+        if (range == null) {
+            range = DatatypeFactory.createField(alignedDevices);
+            for (int a = 0; a < alignedDevices; a++) {
+                final int i = aligned[a];
+                range.addSample(ids[i], distances[i]);
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Computes the position of the aligned neighbors relative to the local
+     * device in a single pass. The domain is the same as
+     * {@link #nbrRange()}, and the result is cached for the rest of the
+     * round.
+     * 
+     * @return a {@link Field} with a {@link Tuple} of cartesian coordinates
+     *         for each aligned neighbor, with the local device as origin
+     */
+    public Field nbrVector() {
+        updateGeometry();
+        if (vector == null) {
+            vector = DatatypeFactory.createField(alignedDevices);
+            for (int a = 0; a < alignedDevices; a++) {
+                final int i = aligned[a];
+                final Object[] coordinates = new Object[dimensions];
+                for (int d = 0; d < dimensions; d++) {
+                    coordinates[d] = vectors[i * dimensions + d];
+                }
+                vector.addSample(ids[i], DatatypeFactory.createTuple(coordinates));
+            }
+        }
+        return vector;
+    }
+
+    /*
+     * Fetches the positions once per round, as signaled by the network manager
+     */
+    private void updateGeometry() {
+        if (root != this) {
+            /*
+             * Keeps the snapshot checked by isGeometryUnchanged up to date
+             */
+            root.updateGeometry();
+        }
+        usedGeometry = true;
+        final long round = netmgr.getReceivedRounds();
+        if (round == geometryRound && position != null) {
+            return;
+        }
+        position = env.getPosition(node);
+        final double[] origin = position.getCartesianCoordinates();
+        dimensions = origin.length;
+        final Neighborhood<Object> neighborhood = env.getNeighborhood(node);
+        final int capacity = neighborhood.size() + 1;
+        if (ids.length < capacity) {
+            ids = Arrays.copyOf(ids, capacity);
+            positions = new Position[capacity];
+            distances = new double[capacity];
+            aligned = new int[capacity];
+        }
+        if (vectors.length < capacity * dimensions) {
+            vectors = new double[capacity * dimensions];
+        }
+        ids[0] = node;
+        aligned[0] = 0;
+        positions[0] = position;
+        distances[0] = 0;
+        Arrays.fill(vectors, 0, dimensions, 0);
+        devices = 1;
+        alignedDevices = 1;
+        for (final Node<Object> neighbor : neighborhood) {
+            if (neighbor instanceof ProtelisNode) {
+                if (netmgr.isAligned((ProtelisNode) neighbor)) {
+                    aligned[alignedDevices++] = devices;
+                }
+                final Position there = env.getPosition(neighbor);
+                ids[devices] = (ProtelisNode) neighbor;
+                positions[devices] = there;
+                distances[devices] = position.getDistanceTo(there);
+                final double[] coordinates = there.getCartesianCoordinates();
+                for (int d = 0; d < dimensions; d++) {
+                    vectors[devices * dimensions + d] = coordinates[d] - origin[d];
+                }
+                devices++;
+            }
+        }
+        /*
+         * Do not retain nodes that left the neighborhood
+         */
+        Arrays.fill(ids, devices, ids.length, null);
+        Arrays.fill(positions, devices, positions.length, null);
+        range = null;
+        vector = null;
+        geometryRound = round;
+    }
+
+    /**
+     * Forgets what the previous round depended on. To be called before each
+     * round.
+     */
+    public void resetDependencies() {
+        usedTime = false;
+        usedRandom = false;
+        usedGeometry = false;
+    }
+
+    /**
+     * @return true if the program read the current time or drew a random
+     *         number since the last {@link #resetDependencies()}
+     */
+    public boolean dependsOnTimeOrRandomness() {
+        return usedTime || usedRandom;
+    }
+
+    /**
+     * @return true if the program read the position of the device or of its
+     *         neighbors since the last {@link #resetDependencies()}
+     */
+    public boolean dependsOnGeometry() {
+        return usedGeometry;
+    }
+
+    /**
+     * @return true if the device, its neighbors and their positions are the
+     *         same as when they were last read. Devices that are not
+     *         neighbors are not tracked
+     */
+    public boolean isGeometryUnchanged() {
+        if (position == null || !position.equals(env.getPosition(node))) {
+            return false;
+        }
+        int i = 1;
+        for (final Node<Object> neighbor : env.getNeighborhood(node)) {
+            if (neighbor instanceof ProtelisNode) {
+                if (i >= devices || ids[i] != neighbor || !positions[i].equals(env.getPosition(neighbor))) {
+                    return false;
+                }
+                i++;
+            }
+        }
+        return i == devices;
     }
 
     @Override
     public double nextRandomDouble() {
-        return rand.nextDouble();
+        root.usedRandom = true;
+        if (!sharedRandom) {
+            return rand.nextDouble();
+        }
+        /*
+         * The generator is shared by nodes running in parallel
+         */
+        synchronized (rand) {
+            return rand.nextDouble();
+        }
     }
 
     @Override
     protected AbstractExecutionContext instance() {
-        return new AlchemistExecutionContext(env, node, react, rand, (AlchemistNetworkManager) getNetworkManager());
+        return new AlchemistExecutionContext(env, node, react, rand, sharedRandom, netmgr, root);
     }
 
     /**
@@ -137,11 +377,60 @@ public class AlchemistExecutionContext extends AbstractExecutionContext {
      */
     public double routingDistance(final Position dest) {
         if (env instanceof IMapEnvironment<?>) {
-            return ((IMapEnvironment<Object>) env).computeRoute(node, dest).getDistance();
+            final IMapEnvironment<Object> map = (IMapEnvironment<Object>) env;
+            final Optional<RouteCache> cache = RouteCache.of(env);
+            if (cache.isPresent()) {
+                return cache.get().distance(getDevicePosition(), dest, () -> map.computeRoute(node, dest).getDistance());
+            }
+            return map.computeRoute(node, dest).getDistance();
         }
         return getDevicePosition().getDistanceTo(dest);
     }
 
+    /**
+     * Computes the distance along a map to the aligned neighbors, as in
+     * {@link #nbrRange()}. Requires a {@link IMapEnvironment}, and benefits
+     * from a {@link RouteCache}.
+     * 
+     * @return a {@link Field} with the routing distance to each aligned
+     *         neighbor, and zero for the local device
+     */
+    public Field nbrRoutingDistance() {
+        updateGeometry();
+        final Field res = DatatypeFactory.createField(alignedDevices);
+        res.addSample(node, 0d);
+        for (int a = 1; a < alignedDevices; a++) {
+            final int i = aligned[a];
+            res.addSample(ids[i], routingDistance(positions[i]));
+        }
+        return res;
+    }
+
+    /**
+     * Computes the distance along a map to several destinations. Requires a
+     * {@link IMapEnvironment}, and benefits from a {@link RouteCache}.
+     * 
+     * @param destinations
+     *            a {@link Tuple} of destinations, each in the form accepted
+     *            by {@link #routingDistance(Tuple)} or
+     *            {@link #routingDistance(Number)}
+     * @return a {@link Tuple} with the routing distance to each destination
+     */
+    public Tuple routingDistances(final Tuple destinations) {
+        final Object[] res = new Object[destinations.size()];
+        for (int i = 0; i < res.length; i++) {
+            final Object destination = destinations.get(i);
+            if (destination instanceof Tuple) {
+                res[i] = routingDistance((Tuple) destination);
+            } else if (destination instanceof Number) {
+                res[i] = routingDistance((Number) destination);
+            } else {
+                throw new IllegalArgumentException(destination + " is not a destination I can understand.");
+            }
+        }
+        return DatatypeFactory.createTuple(res);
+    }
+
     @Override
     public boolean equals(final Object obj) {
         if (this == obj) {
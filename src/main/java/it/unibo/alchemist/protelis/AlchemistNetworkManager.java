@@ -3,61 +3,451 @@
  */
 package it.unibo.alchemist.protelis;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.protelis.lang.datatype.DeviceUID;
 import org.protelis.vm.NetworkManager;
 import org.protelis.vm.util.CodePath;
 
+import it.unibo.alchemist.model.ProtelisIncarnation;
 import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
 import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
 import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Neighborhood;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
 
 /**
  * Emulates a {@link NetworkManager}. This particular network manager does not
  * send messages istantly. Instead, it records the last message to send, and
  * only when {@link #simulateMessageArrival()} is called the transfer is
  * actually done.
- * 
+ *
+ * In delta mode (see {@link #setDeltaEncoding(boolean)}), only the entries
+ * that changed since the previous round are encoded, and each receiver
+ * decodes them over the last state it got from the sender. Receivers that
+ * missed the previous round get the full state instead. Delta mode only
+ * affects wire mode: without encoding, all receivers share the state of the
+ * sender, which is cheaper than any diff.
+ *
+ * Senders only post into the {@link Mailbox} of the receiver, which processes
+ * them at the beginning of its round. With concurrent delivery (see
+ * {@link #setConcurrentDelivery(boolean)}), messages from different senders
+ * can be posted from multiple threads, and are processed in order of sender
+ * ID.
+ *
+ * The managers of the neighbors are cached, and looked up again only when
+ * the neighborhood of the node changes (see {@link #getRecipientsRebuilds()}).
+ *
+ * In compact mode (see {@link #setCompactEncoding(boolean)}), states are
+ * encoded with the {@link CodePathDictionary} of the program before being
+ * shipped. As the VM still reads states by {@link CodePath}, this makes
+ * messages smaller but not faster to read, and it is disabled by default.
+ *
+ * In wire mode (see {@link #setWireEncoding(boolean)}), states are encoded
+ * by a {@link StateCodec}, and each receiver decodes its own copy. This
+ * makes the size of the messages measurable.
+ *
+ * To support quiescence detection, the neighbor state of the next round can
+ * be inspected in advance (see {@link #hasNeighborStateChanged()}), and a
+ * round can be skipped re-sharing the previous state (see
+ * {@link #skipRound()}).
+ *
+ * With a retention time (see {@link #setRetentionTime(double)}), the last
+ * state received from each neighbor is kept until it gets older than the
+ * retention time, or until the sender leaves the neighborhood. This allows
+ * messages to be sent less frequently than programs are executed.
  */
 public final class AlchemistNetworkManager implements NetworkManager, Serializable {
 
     private static final long serialVersionUID = -7028533174885876642L;
     private final Environment<Object> env;
     private final ProtelisNode node;
+    private final Reaction<Object> reaction;
     private final RunProtelisProgram prog;
-    private Map<DeviceUID, Map<CodePath, Object>> msgs = new LinkedHashMap<>();
+    private final CodePathDictionary dictionary;
+    private boolean compact;
+    private final Mailbox<ProtelisNode, Message> msgs = new Mailbox<>(new ById());
     private Map<CodePath, Object> toBeSent;
+    /*
+     * Quiescence detection
+     */
+    private boolean quiescence;
+    private Map<CodePath, Object> lastShared = Collections.emptyMap();
+    private boolean exportUnchanged;
+    private Map<DeviceUID, Map<CodePath, Object>> lastNeighborState = Collections.emptyMap();
+    private Map<DeviceUID, Map<CodePath, Object>> prefetched;
+    /*
+     * Compact mode: the last state encoded, which is reused if shared again
+     */
+    private Map<CodePath, Object> lastEncodedSource;
+    private EncodedState lastEncoded;
+    private boolean delta;
+    /*
+     * Delta mode, sender side
+     */
+    private Map<CodePath, Object> lastSent = Collections.emptyMap();
+    private long round;
+    /*
+     * Receiver side: the last rebuilt state of each neighbor sending deltas
+     */
+    private final Map<DeviceUID, Received> known = new LinkedHashMap<>();
+    /*
+     * Retention: the last state of each neighbor, with its reception time
+     */
+    private double retentionTime;
+    private final Map<ProtelisNode, Retained> retained = new TreeMap<>(new ById());
+    private long lastRoundRetained;
+    /*
+     * Recipients cache: neighbors in iteration order, and their managers
+     */
+    private transient Node<?>[] neighbors;
+    private transient AlchemistNetworkManager[] recipients;
+    private long recipientsHits;
+    private long recipientsRebuilds;
+    private long receivedRounds;
+    private ProgramMetrics metrics;
+    /*
+     * Wire mode
+     */
+    private transient StateCodec codec;
+    private long lastMessageBytes;
+    private long maxMessageBytes;
+    private long lastRoundReceivedBytes;
+    private long totalReceivedBytes;
+    /*
+     * Delta mode, statistics
+     */
+    private long lastRoundEntries;
+    private long lastRoundSavedEntries;
 
     /**
      * @param environment
      *            the environment
      * @param local
      *            the node
+     * @param reaction
+     *            the {@link Reaction} executing the program, used to tell the
+     *            current time
      * @param program
      *            the {@link RunProtelisProgram}
      */
-    public AlchemistNetworkManager(final Environment<Object> environment, final ProtelisNode local, final RunProtelisProgram program) {
+    public AlchemistNetworkManager(
+            final Environment<Object> environment,
+            final ProtelisNode local,
+            final Reaction<Object> reaction,
+            final RunProtelisProgram program) {
         env = environment;
         node = local;
+        this.reaction = reaction;
         prog = program;
+        dictionary = ProtelisIncarnation.instance().getProgramRegistry().getDictionary(program.getSource());
     }
 
     @Override
     public Map<DeviceUID, Map<CodePath, Object>> getNeighborState() {
-        final Map<DeviceUID, Map<CodePath, Object>> res = msgs;
-        msgs = new LinkedHashMap<>();
+        final Map<DeviceUID, Map<CodePath, Object>> res;
+        if (prefetched == null) {
+            res = readNeighborState();
+        } else {
+            res = prefetched;
+            prefetched = null;
+        }
+        lastNeighborState = res;
+        return res;
+    }
+
+    /**
+     * @param device
+     *            a device
+     * @return true if the state handed out by the last
+     *         {@link #getNeighborState()} includes the one of device, namely,
+     *         if device is in the domain of the fields built in this round
+     */
+    public boolean isAligned(final DeviceUID device) {
+        return lastNeighborState.containsKey(device);
+    }
+
+    /**
+     * Reads the neighbor state of the next round in advance, and compares it
+     * with the one of the last round. The state read is returned by the next
+     * call to {@link #getNeighborState()}.
+     * 
+     * @return true if the neighbor state changed since the last round
+     */
+    public boolean hasNeighborStateChanged() {
+        if (prefetched == null) {
+            prefetched = readNeighborState();
+        }
+        return !prefetched.equals(lastNeighborState);
+    }
+
+    /**
+     * Completes a round without executing the program: the neighbor state
+     * read in advance is consumed, and the last shared state is shared again.
+     */
+    public void skipRound() {
+        if (prefetched != null) {
+            lastNeighborState = prefetched;
+            prefetched = null;
+        } else {
+            receivedRounds++;
+        }
+        toBeSent = lastShared;
+        exportUnchanged = true;
+    }
+
+    /**
+     * @param enabled
+     *            true if the shared states should be tracked, in order to
+     *            support {@link #isExportUnchanged()} and {@link #skipRound()}
+     */
+    public void setQuiescenceDetection(final boolean enabled) {
+        quiescence = enabled;
+        lastShared = Collections.emptyMap();
+        exportUnchanged = false;
+    }
+
+    /**
+     * @return true if the state shared in the last round is equal to the one
+     *         shared in the round before. Requires quiescence detection
+     */
+    public boolean isExportUnchanged() {
+        return exportUnchanged;
+    }
+
+    private Map<DeviceUID, Map<CodePath, Object>> readNeighborState() {
+        receivedRounds++;
+        final Map<ProtelisNode, Message> received = msgs.drain();
+        if (metrics != null) {
+            metrics.recordInbox(received.size());
+        }
+        final Map<DeviceUID, Map<CodePath, Object>> res = new LinkedHashMap<>(received.size() * 2);
+        lastRoundEntries = 0;
+        lastRoundSavedEntries = 0;
+        lastRoundReceivedBytes = 0;
+        for (final Map.Entry<ProtelisNode, Message> message : received.entrySet()) {
+            res.put(message.getKey(), receive(message.getKey(), message.getValue()));
+        }
+        if (!known.isEmpty()) {
+            /*
+             * Neighbors that did not send this round must re-synchronize.
+             */
+            known.keySet().retainAll(res.keySet());
+        }
+        totalReceivedBytes += lastRoundReceivedBytes;
+        if (retentionTime > 0) {
+            return retain(res);
+        }
+        lastRoundRetained = 0;
+        return res;
+    }
+
+    /*
+     * Merges the fresh states with the ones retained from previous rounds,
+     * evicting the expired ones and those of nodes that are no longer
+     * neighbors.
+     */
+    private Map<DeviceUID, Map<CodePath, Object>> retain(final Map<DeviceUID, Map<CodePath, Object>> fresh) {
+        final double now = reaction.getTau().toDouble();
+        for (final Map.Entry<DeviceUID, Map<CodePath, Object>> state : fresh.entrySet()) {
+            retained.put((ProtelisNode) state.getKey(), new Retained(now, state.getValue()));
+        }
+        lastRoundRetained = 0;
+        if (retained.size() == fresh.size()) {
+            return fresh;
+        }
+        final Neighborhood<Object> neighborhood = env.getNeighborhood(node);
+        final Map<DeviceUID, Map<CodePath, Object>> res = new LinkedHashMap<>(retained.size() * 2);
+        for (final Iterator<Map.Entry<ProtelisNode, Retained>> it = retained.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<ProtelisNode, Retained> entry = it.next();
+            final ProtelisNode sender = entry.getKey();
+            final Retained state = entry.getValue();
+            if (!fresh.containsKey(sender)) {
+                if (now - state.time > retentionTime || !neighborhood.contains(sender)) {
+                    it.remove();
+                    continue;
+                }
+                lastRoundRetained++;
+            }
+            res.put(sender, state.state);
+        }
         return res;
     }
 
     @Override
     public void shareState(final Map<CodePath, Object> toSend) {
+        if (quiescence) {
+            exportUnchanged = toSend.equals(lastShared);
+            lastShared = toSend;
+        }
         toBeSent = toSend;
     }
 
+    /**
+     * @param enabled
+     *            true if neighbors may send to this manager from multiple
+     *            threads at once. Must not be changed while they are sending
+     */
+    public void setConcurrentDelivery(final boolean enabled) {
+        msgs.setConcurrent(enabled);
+    }
+
+    /**
+     * @return true if neighbors may send to this manager from multiple
+     *         threads at once
+     */
+    public boolean isConcurrentDelivery() {
+        return msgs.isConcurrent();
+    }
+
+    /**
+     * @param enabled
+     *            true if only the changes since the previous round should be
+     *            encoded. It has no effect unless wire mode is enabled too
+     */
+    public void setDeltaEncoding(final boolean enabled) {
+        delta = enabled;
+        lastSent = Collections.emptyMap();
+    }
+
+    /**
+     * @return true if this manager only sends the changes since the previous
+     *         round
+     */
+    public boolean isDeltaEncoding() {
+        return delta;
+    }
+
+    /**
+     * @param enabled
+     *            true if states should be shipped as {@link EncodedState}s,
+     *            keyed by the code of each {@link CodePath}
+     */
+    public void setCompactEncoding(final boolean enabled) {
+        compact = enabled;
+        lastSent = Collections.emptyMap();
+    }
+
+    /**
+     * @return true if states are shipped as {@link EncodedState}s
+     */
+    public boolean isCompactEncoding() {
+        return compact;
+    }
+
+    /**
+     * @param enabled
+     *            true if states should really be encoded by the sender and
+     *            decoded by each receiver, in order to measure their size
+     */
+    public void setWireEncoding(final boolean enabled) {
+        codec = enabled ? new StateCodec(dictionary, env) : null;
+        lastSent = Collections.emptyMap();
+    }
+
+    /**
+     * @return true if states are encoded by the sender and decoded by the
+     *         receivers
+     */
+    public boolean isWireEncoding() {
+        return codec != null;
+    }
+
+    /**
+     * @return in wire mode, the size in bytes of the last message, namely of
+     *         the changes in delta mode
+     */
+    public long getLastMessageBytes() {
+        return lastMessageBytes;
+    }
+
+    /**
+     * @return in wire mode, the size in bytes of the largest message sent
+     */
+    public long getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    /**
+     * @return in wire mode, the bytes received from all the neighbors in the
+     *         last round
+     */
+    public long getLastRoundReceivedBytes() {
+        return lastRoundReceivedBytes;
+    }
+
+    /**
+     * @return in wire mode, the bytes received since the beginning of the
+     *         simulation
+     */
+    public long getTotalReceivedBytes() {
+        return totalReceivedBytes;
+    }
+
+    /**
+     * @param ttl
+     *            how long, in simulated time, the last state of a neighbor
+     *            remains visible after it has been received. Zero (default)
+     *            means that neighbors are visible only in the round after
+     *            they sent a message
+     */
+    public void setRetentionTime(final double ttl) {
+        if (ttl < 0 || Double.isNaN(ttl)) {
+            throw new IllegalArgumentException("Invalid retention time: " + ttl);
+        }
+        retentionTime = ttl;
+        if (ttl == 0) {
+            retained.clear();
+        }
+    }
+
+    /**
+     * @return how long, in simulated time, the last state of a neighbor
+     *         remains visible after it has been received
+     */
+    public double getRetentionTime() {
+        return retentionTime;
+    }
+
+    /**
+     * @return the number of neighbors whose state was retained from previous
+     *         rounds, rather than received, in the last round
+     */
+    public long getLastRoundRetained() {
+        return lastRoundRetained;
+    }
+
+    /**
+     * @return the number of entries received from all the neighbors in the
+     *         last round
+     */
+    public long getLastRoundEntries() {
+        return lastRoundEntries;
+    }
+
+    /**
+     * @return the number of entries that delta encoding avoided to ship to
+     *         this node in the last round. The bytes actually shipped are
+     *         measured by {@link #getLastRoundReceivedBytes()}
+     */
+    public long getLastRoundSavedEntries() {
+        return lastRoundSavedEntries;
+    }
+
     /**
      * 
      */
@@ -65,20 +455,354 @@ public final class AlchemistNetworkManager implements NetworkManager, Serializab
         assert toBeSent != null;
         Objects.requireNonNull(toBeSent);
         if (!toBeSent.isEmpty()) {
-            env.getNeighborhood(node).forEach(n -> {
-                if (n instanceof ProtelisNode) {
-                    final AlchemistNetworkManager destination = ((ProtelisNode) n).getNetworkManager(prog);
-                    if (destination != null) {
-                        /*
-                         * The node is running the program. Otherwise, the
-                         * program is discarded
-                         */
-                        destination.msgs.put(node, toBeSent);
-                    }
+            final Map<CodePath, Object> state = compact ? encode(toBeSent) : toBeSent;
+            final Message message;
+            if (codec == null) {
+                message = new Message(state);
+            } else {
+                if (delta) {
+                    message = new Message(codec, round, round + 1, lastSent, state);
+                    lastSent = state;
+                    round++;
+                } else {
+                    message = new Message(codec, state);
                 }
-            });
+                lastMessageBytes = message.wireBytes();
+                maxMessageBytes = Math.max(maxMessageBytes, lastMessageBytes);
+            }
+            final AlchemistNetworkManager[] destinations = getRecipients();
+            for (final AlchemistNetworkManager destination : destinations) {
+                destination.msgs.post(node, message);
+            }
+            if (metrics != null) {
+                metrics.recordSend(destinations.length, state.size());
+            }
         }
         toBeSent = null;
     }
 
+    private EncodedState encode(final Map<CodePath, Object> state) {
+        if (state != lastEncodedSource) {
+            lastEncoded = dictionary.encode(state);
+            lastEncodedSource = state;
+        }
+        return lastEncoded;
+    }
+
+    /*
+     * The managers of the neighbors running the same program. Neighbors not
+     * running it are skipped.
+     */
+    private AlchemistNetworkManager[] getRecipients() {
+        final Neighborhood<Object> neighborhood = env.getNeighborhood(node);
+        if (recipients != null && isCached(neighborhood)) {
+            recipientsHits++;
+            return recipients;
+        }
+        recipientsRebuilds++;
+        final Node<?>[] newNeighbors = new Node<?>[neighborhood.size()];
+        final List<AlchemistNetworkManager> newRecipients = new ArrayList<>(newNeighbors.length);
+        boolean complete = true;
+        int i = 0;
+        for (final Node<Object> neighbor : neighborhood) {
+            newNeighbors[i++] = neighbor;
+            if (neighbor instanceof ProtelisNode) {
+                final AlchemistNetworkManager destination = ((ProtelisNode) neighbor).getNetworkManager(prog);
+                if (destination == null) {
+                    /*
+                     * The program may still be loading on this node
+                     */
+                    complete = false;
+                } else {
+                    newRecipients.add(destination);
+                }
+            }
+        }
+        final AlchemistNetworkManager[] res = newRecipients.toArray(new AlchemistNetworkManager[newRecipients.size()]);
+        if (complete) {
+            neighbors = newNeighbors;
+            recipients = res;
+        } else {
+            invalidateRecipients();
+        }
+        return res;
+    }
+
+    private boolean isCached(final Neighborhood<Object> neighborhood) {
+        if (neighborhood.size() != neighbors.length) {
+            return false;
+        }
+        int i = 0;
+        for (final Node<Object> neighbor : neighborhood) {
+            if (neighbor != neighbors[i++]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forces the managers of the neighbors to be looked up again at the next
+     * send. Changes in the neighborhood are detected automatically, this is
+     * only required if a neighbor starts running this program in a different
+     * {@link RunProtelisProgram} instance.
+     */
+    public void invalidateRecipients() {
+        neighbors = null;
+        recipients = null;
+    }
+
+    /**
+     * @param programMetrics
+     *            where to record inbox and send statistics, or null to stop
+     *            recording them
+     */
+    public void setMetrics(final ProgramMetrics programMetrics) {
+        metrics = programMetrics;
+    }
+
+    /**
+     * @return how many times the neighbor state was read, namely, the number
+     *         of rounds executed by the program
+     */
+    public long getReceivedRounds() {
+        return receivedRounds;
+    }
+
+    /**
+     * @return how many sends reused the cached neighbor managers
+     */
+    public long getRecipientsHits() {
+        return recipientsHits;
+    }
+
+    /**
+     * @return how many sends had to look up the neighbor managers, because
+     *         the neighborhood changed
+     */
+    public long getRecipientsRebuilds() {
+        return recipientsRebuilds;
+    }
+
+    /**
+     * Frees the memory used to speed up communication: the states kept for
+     * delta encoding and quiescence detection, and the recipients cache.
+     * Pending messages, the state to be sent and the retained states are
+     * kept. Neighbors that were synchronized will receive full states.
+     */
+    public void release() {
+        lastSent = Collections.emptyMap();
+        known.clear();
+        lastShared = Collections.emptyMap();
+        lastNeighborState = Collections.emptyMap();
+        prefetched = null;
+        exportUnchanged = false;
+        lastEncoded = null;
+        lastEncodedSource = null;
+        invalidateRecipients();
+    }
+
+    /*
+     * Checkpointing. Pending messages are saved as full states, and delta
+     * encoding restarts from scratch.
+     */
+    void save(final Checkpoint.Output out) throws IOException {
+        out.putState(toBeSent);
+        final Map<ProtelisNode, Message> pending = msgs.snapshot();
+        out.file().putVarInt(pending.size());
+        for (final Map.Entry<ProtelisNode, Message> message : pending.entrySet()) {
+            out.file().putInt(message.getKey().getId());
+            out.putState(message.getValue().full);
+        }
+        out.file().putVarInt(retained.size());
+        for (final Map.Entry<ProtelisNode, Retained> state : retained.entrySet()) {
+            out.file().putInt(state.getKey().getId());
+            out.file().putDouble(state.getValue().time);
+            out.putState(state.getValue().state);
+        }
+        out.file().putLong(receivedRounds);
+    }
+
+    void load(final Checkpoint.Input in) throws IOException {
+        toBeSent = in.getState();
+        msgs.drain();
+        final int pending = in.file().getVarInt();
+        for (int i = 0; i < pending; i++) {
+            final ProtelisNode sender = in.node(in.file().getInt());
+            msgs.post(sender, new Message(in.getState()));
+        }
+        retained.clear();
+        final int states = in.file().getVarInt();
+        for (int i = 0; i < states; i++) {
+            final ProtelisNode sender = in.node(in.file().getInt());
+            final double time = in.file().getDouble();
+            retained.put(sender, new Retained(time, in.getState()));
+        }
+        receivedRounds = in.file().getLong();
+        release();
+    }
+
+    /*
+     * Rebuilds the state of a neighbor, updating the statistics.
+     */
+    private Map<CodePath, Object> receive(final DeviceUID sender, final Message message) {
+        if (!message.isDelta()) {
+            lastRoundEntries += message.full.size();
+            return fullState(message);
+        }
+        final Received previous = known.get(sender);
+        final Map<CodePath, Object> state;
+        if (previous != null && previous.round == message.base) {
+            state = message.codec.decode(message.deltaWire, previous.state);
+            lastRoundReceivedBytes += message.deltaWire.length;
+            lastRoundEntries += message.size;
+            lastRoundSavedEntries += message.full.size() - message.size;
+        } else {
+            state = fullState(message);
+            lastRoundEntries += message.full.size();
+        }
+        known.put(sender, new Received(message.round, state));
+        return state;
+    }
+
+    private Map<CodePath, Object> fullState(final Message message) {
+        if (message.codec == null) {
+            return message.full;
+        }
+        final byte[] wire = message.fullWire();
+        lastRoundReceivedBytes += wire.length;
+        return message.codec.decode(wire, Collections.emptyMap());
+    }
+
+    private static final class Retained implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final double time;
+        private final Map<CodePath, Object> state;
+
+        Retained(final double time, final Map<CodePath, Object> state) {
+            this.time = time;
+            this.state = state;
+        }
+    }
+
+    private static final class Received implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long round;
+        private final Map<CodePath, Object> state;
+
+        Received(final long round, final Map<CodePath, Object> state) {
+            this.round = round;
+            this.state = state;
+        }
+    }
+
+    /**
+     * The state of a sender. Without wire mode, receivers share the state
+     * itself. In wire mode, the state is encoded by the sender and decoded by
+     * each receiver, and in delta mode only the changes since the previous
+     * message are encoded eagerly: the full state is encoded only if some
+     * receiver is not synchronized.
+     */
+    private static final class Message implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long base;
+        private final long round;
+        private final Map<CodePath, Object> full;
+        /*
+         * Wire mode only
+         */
+        private final StateCodec codec;
+        private final byte[] deltaWire;
+        private final int size;
+        private volatile byte[] fullWire;
+
+        Message(final Map<CodePath, Object> state) {
+            base = -1;
+            round = -1;
+            full = state;
+            codec = null;
+            deltaWire = null;
+            size = state.size();
+        }
+
+        Message(final StateCodec stateCodec, final Map<CodePath, Object> state) {
+            base = -1;
+            round = -1;
+            full = state;
+            codec = stateCodec;
+            deltaWire = null;
+            size = state.size();
+            fullWire();
+        }
+
+        Message(
+                final StateCodec stateCodec,
+                final long base,
+                final long round,
+                final Map<CodePath, Object> previous,
+                final Map<CodePath, Object> current) {
+            this.base = base;
+            this.round = round;
+            full = current;
+            codec = stateCodec;
+            final Map<CodePath, Object> changed = new HashMap<>();
+            int common = 0;
+            for (final Map.Entry<CodePath, Object> entry : current.entrySet()) {
+                final CodePath key = entry.getKey();
+                if (previous.containsKey(key)) {
+                    common++;
+                    if (Objects.equals(previous.get(key), entry.getValue())) {
+                        continue;
+                    }
+                }
+                changed.put(key, entry.getValue());
+            }
+            final Set<CodePath> removed;
+            if (previous.size() > common) {
+                removed = new HashSet<>(previous.keySet());
+                removed.removeAll(current.keySet());
+            } else {
+                removed = Collections.emptySet();
+            }
+            size = changed.size() + removed.size();
+            synchronized (codec) {
+                deltaWire = codec.encode(changed, removed);
+            }
+        }
+
+        boolean isDelta() {
+            return deltaWire != null;
+        }
+
+        /*
+         * Receivers of different nodes may ask for it concurrently, and the
+         * codec of the sender reuses its buffer
+         */
+        byte[] fullWire() {
+            byte[] res = fullWire;
+            if (res == null) {
+                synchronized (codec) {
+                    res = fullWire;
+                    if (res == null) {
+                        res = codec.encode(full);
+                        fullWire = res;
+                    }
+                }
+            }
+            return res;
+        }
+
+        long wireBytes() {
+            return isDelta() ? deltaWire.length : fullWire().length;
+        }
+    }
+
+    private static final class ById implements Comparator<ProtelisNode>, Serializable {
+        private static final long serialVersionUID = 1L;
+        @Override
+        public int compare(final ProtelisNode n1, final ProtelisNode n2) {
+            return Integer.compare(n1.getId(), n2.getId());
+        }
+    }
+
 }
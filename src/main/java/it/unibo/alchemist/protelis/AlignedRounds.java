@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.actions.SendToNeighbor;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.implementations.reactions.BatchReaction;
+import it.unibo.alchemist.model.implementations.timedistributions.DiracComb;
+import it.unibo.alchemist.model.implementations.timedistributions.RestorableDiracComb;
+import it.unibo.alchemist.model.implementations.times.DoubleTime;
+import it.unibo.alchemist.model.interfaces.Action;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.model.interfaces.TimeDistribution;
+
+/**
+ * Replaces the periodic Protelis reactions of an environment with one
+ * {@link BatchReaction} per frequency and phase. With aligned time
+ * distributions (see
+ * {@link it.unibo.alchemist.model.ProtelisIncarnation#createTimeDistribution})
+ * there are as many phases as buckets, and the simulator schedules one event
+ * per bucket rather than one per node.
+ */
+public final class AlignedRounds {
+
+    private AlignedRounds() {
+    }
+
+    /**
+     * Groups the reactions running {@link RunProtelisProgram} actions by rate
+     * and next occurrence, removes them from the simulator, and adds a
+     * {@link BatchReaction} for each group to the node with the lowest id in
+     * the group. Only reactions with a {@link DiracComb} time distribution are
+     * grouped. A reaction running the {@link SendToNeighbor} action of a
+     * grouped program joins its group if it has the same frequency and phase,
+     * or if it has an infinite rate, namely, it sends as soon as its
+     * conditions hold. If it has another {@link DiracComb}, it stays
+     * scheduled on its own; any other time distribution is rejected, as the
+     * batch would never reschedule it. The other sending reactions with a
+     * {@link DiracComb} are grouped on their own. Grouped programs stay
+     * installed on their nodes, see
+     * {@link ProtelisNode#detachReaction(Reaction)}. Must be called before the
+     * simulation is created.
+     * 
+     * @param env
+     *            the {@link Environment}
+     * @param pool
+     *            the {@link ForkJoinPool} where the batches are executed, or
+     *            null for a sequential execution
+     * @return the installed {@link BatchReaction}s
+     * @throws IllegalStateException
+     *             if some Protelis action is not local, or some reaction
+     *             sending the state of a grouped program can not be grouped
+     *             nor left on its own
+     */
+    public static List<BatchReaction> install(final Environment<Object> env, final ForkJoinPool pool) {
+        if (pool != null) {
+            SynchronousRounds.enableConcurrency(env);
+        }
+        final List<Node<Object>> nodes = new ArrayList<>(env.getNodes());
+        Collections.sort(nodes, Comparator.comparingInt(Node::getId));
+        final Map<List<Double>, List<Reaction<Object>>> groups = new LinkedHashMap<>();
+        final Map<RunProtelisProgram, List<Double>> grouped = new IdentityHashMap<>();
+        for (final Node<Object> node : nodes) {
+            for (final Reaction<Object> reaction : node.getReactions()) {
+                if (reaction.getTimeDistribution() instanceof DiracComb && runsProgram(reaction)) {
+                    final List<Double> key = key(reaction);
+                    groups.computeIfAbsent(key, k -> new ArrayList<>()).add(reaction);
+                    for (final Action<Object> action : reaction.getActions()) {
+                        if (action instanceof RunProtelisProgram) {
+                            grouped.put((RunProtelisProgram) action, key);
+                        }
+                    }
+                }
+            }
+        }
+        for (final Node<Object> node : nodes) {
+            for (final Reaction<Object> reaction : node.getReactions()) {
+                if (!runsProgram(reaction) && sends(reaction)) {
+                    final boolean periodic = reaction.getTimeDistribution() instanceof DiracComb;
+                    final List<Double> programKey = programKey(reaction, grouped);
+                    if (programKey == null) {
+                        if (periodic) {
+                            groups.computeIfAbsent(key(reaction), k -> new ArrayList<>()).add(reaction);
+                        }
+                    } else if (periodic ? key(reaction).equals(programKey) : isImmediate(reaction)) {
+                        groups.get(programKey).add(reaction);
+                    } else if (!periodic) {
+                        throw new IllegalStateException(reaction + " sends the state of a batched program, "
+                                + "but is neither periodic nor immediate, and would never be rescheduled");
+                    }
+                }
+            }
+        }
+        final List<BatchReaction> batches = new ArrayList<>(groups.size());
+        for (final Map.Entry<List<Double>, List<Reaction<Object>>> group : groups.entrySet()) {
+            final List<Reaction<Object>> members = group.getValue();
+            final Node<Object> host = members.get(0).getNode();
+            final double rate = group.getKey().get(0);
+            final double start = group.getKey().get(1);
+            final TimeDistribution<Object> time = new RestorableDiracComb<>(new DoubleTime(start), rate);
+            final BatchReaction batch = new BatchReaction(host, time, members, pool);
+            for (final Reaction<Object> member : members) {
+                final Node<Object> node = member.getNode();
+                if (node != host && node instanceof ProtelisNode) {
+                    ((ProtelisNode) node).detachReaction(member);
+                } else {
+                    /*
+                     * The members of the host get installed again with the
+                     * batch
+                     */
+                    node.removeReaction(member);
+                }
+            }
+            host.addReaction(batch);
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private static List<Double> key(final Reaction<Object> reaction) {
+        return Arrays.asList(reaction.getTimeDistribution().getRate(), reaction.getTau().toDouble());
+    }
+
+    private static List<Double> programKey(final Reaction<Object> reaction,
+            final Map<RunProtelisProgram, List<Double>> grouped) {
+        for (final Action<Object> action : reaction.getActions()) {
+            if (action instanceof SendToNeighbor) {
+                final List<Double> key = grouped.get(((SendToNeighbor) action).getProtelisProgram());
+                if (key != null) {
+                    return key;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isImmediate(final Reaction<Object> reaction) {
+        return Double.isInfinite(reaction.getTimeDistribution().getRate());
+    }
+
+    private static boolean runsProgram(final Reaction<Object> reaction) {
+        return reaction.getActions().stream().anyMatch(a -> a instanceof RunProtelisProgram);
+    }
+
+    private static boolean sends(final Reaction<Object> reaction) {
+        return reaction.getActions().stream().anyMatch(a -> a instanceof SendToNeighbor);
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongFunction;
+import java.util.function.ToDoubleFunction;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+
+/**
+ * Runs many independent simulations of the same scenario in one JVM, on a
+ * bounded pool of threads, and aggregates an observable of each round into
+ * {@link OnlineStatistics}.
+ *
+ * Each run builds its own {@link Environment}, so all the simulation state is
+ * private to the run. Runs are executed as {@link SynchronousRounds} on a
+ * single thread each, with a random stream per program derived from the
+ * seed of the run. Sources are parsed once through the
+ * {@link ProgramRegistry} of the incarnation, and each program of each run
+ * evaluates its own copy of the parsed code, holding its own state. Metrics
+ * are collected in the {@link MetricsRegistry} of each environment. Runs
+ * only share the {@link MoleculeTable} of the incarnation, which maps
+ * variable names to slots and holds no value: a variable reads the same
+ * whether it got a slot or not.
+ *
+ * Environments are built one at a time, as the simulation loaders are not
+ * guaranteed to be thread-safe.
+ */
+public final class BatchRunner implements Closeable {
+
+    private final ExecutorService pool;
+    private final Object buildLock = new Object();
+
+    /**
+     * Builds a runner with a thread per available processor.
+     */
+    public BatchRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *            the maximum number of runs executed at once
+     */
+    public BatchRunner(final int threads) {
+        pool = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * @param scenario
+     *            builds the environment of a run, given its seed
+     * @param seeds
+     *            the seeds, one per run
+     * @param rounds
+     *            the number of rounds of each run
+     * @param observable
+     *            the value to aggregate, read from the environment after each
+     *            round
+     * @return for each round, the mean and variance of the observable across
+     *         the runs
+     * @throws InterruptedException
+     *             if interrupted while waiting for the runs
+     * @throws ExecutionException
+     *             if some run failed
+     */
+    public OnlineStatistics run(
+            final LongFunction<Environment<Object>> scenario,
+            final long[] seeds,
+            final int rounds,
+            final ToDoubleFunction<Environment<Object>> observable) throws InterruptedException, ExecutionException {
+        final OnlineStatistics statistics = new OnlineStatistics();
+        final List<Future<?>> runs = new ArrayList<>(seeds.length);
+        for (final long seed : seeds) {
+            runs.add(pool.submit(() -> {
+                final Environment<Object> env;
+                synchronized (buildLock) {
+                    env = scenario.apply(seed);
+                }
+                final SynchronousRounds executor = new SynchronousRounds(env);
+                executor.setRandomStreams(seed);
+                for (int round = 0; round < rounds; round++) {
+                    executor.step();
+                    statistics.accept(round, observable.applyAsDouble(env));
+                }
+            }));
+        }
+        try {
+            for (final Future<?> run : runs) {
+                run.get();
+            }
+        } finally {
+            runs.forEach(r -> r.cancel(true));
+        }
+        return statistics;
+    }
+
+    /**
+     * @param env
+     *            the {@link Environment}
+     * @return the mean of the numeric values of all the Protelis programs of
+     *         the environment, ignoring those that are not numbers, or NaN if
+     *         there are none
+     */
+    public static double meanProgramValue(final Environment<Object> env) {
+        double sum = 0;
+        long count = 0;
+        for (final Node<Object> node : env.getNodes()) {
+            if (node instanceof ProtelisNode) {
+                final ProtelisNode pNode = (ProtelisNode) node;
+                for (final RunProtelisProgram program : pNode.getPrograms()) {
+                    final double value = pNode.getNumericConcentration(program);
+                    if (!Double.isNaN(value)) {
+                        sum += value;
+                        count++;
+                    }
+                }
+            }
+        }
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Stops the worker threads, once the running batches are over.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.protelis.vm.util.CodePath;
+
+import it.unibo.alchemist.model.ProtelisIncarnation;
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.implementations.timedistributions.DiracComb;
+import it.unibo.alchemist.model.implementations.timedistributions.RestorableDiracComb;
+import it.unibo.alchemist.model.implementations.times.DoubleTime;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Molecule;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.model.interfaces.TimeDistribution;
+
+/**
+ * Writes the state of all the Protelis nodes of an {@link Environment} to a
+ * memory-mapped file, and restores it into an environment built from the same
+ * simulation file, so that the simulation continues as if it was never
+ * interrupted. The state includes:
+ * <ul>
+ * <li>the concentrations of each node. The values computed by programs are
+ * keyed by the index of the program on the node, not by its name, so that
+ * programs with the same name do not collide;</li>
+ * <li>the time of the next occurrence of each reaction;</li>
+ * <li>for each program, the state of its VM (see
+ * {@link RunProtelisProgram#writeState(java.io.ObjectOutput)}), along with the
+ * state waiting to be sent, the messages waiting to be received, and the
+ * neighbor states retained by its {@link AlchemistNetworkManager}, and the
+ * state of its private random stream, if any.</li>
+ * </ul>
+ *
+ * Values are written in the format of {@link StateCodec}. Keys of the shared
+ * states are written as codes of the {@link CodePathDictionary} of their
+ * program, and each dictionary is serialized once, at the end of the file.
+ * Protelis keeps the state of rep in the parsed program, with no other way
+ * to read or write it, so the parsed program is written with Java
+ * serialization, once per program; devices and the environment it refers to
+ * are written as references, and resolved in the restored environment.
+ *
+ * The random generator of the simulation is not part of the checkpoint, as
+ * it can not be restored through its interface: programs drawing from it
+ * continue from its state at restore time. Programs with a private stream
+ * (see {@link RunProtelisProgram#setRandomStream(long)}) continue exactly.
+ *
+ * Reactions with a {@link RestorableDiracComb} distribution, as built by the
+ * incarnation, are put back at their saved time. Reactions with other
+ * distributions are rescheduled by the engine, from their rate, when it is
+ * created: it must be created after the restore.
+ */
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x50524f54;
+    private static final int VERSION = 3;
+    private static final byte MOLECULE = 0;
+    private static final byte PROGRAM = 1;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * @param env
+     *            the environment
+     * @param file
+     *            the checkpoint file. It is overwritten if it exists
+     * @return the size of the checkpoint, in bytes
+     * @throws IOException
+     *             if the file can not be written
+     */
+    public static long write(final Environment<Object> env, final Path file) throws IOException {
+        try (Output out = new Output(env, file)) {
+            final List<ProtelisNode> nodes = protelisNodes(env);
+            out.file.putInt(MAGIC);
+            out.file.putInt(VERSION);
+            out.file.putVarInt(nodes.size());
+            for (final ProtelisNode node : nodes) {
+                out.file.putInt(node.getId());
+                final List<RunProtelisProgram> programs = node.getPrograms();
+                final Map<Molecule, Object> contents = node.getContents();
+                out.file.putVarInt(contents.size());
+                for (final Map.Entry<Molecule, Object> concentration : contents.entrySet()) {
+                    final int program = indexOf(programs, concentration.getKey());
+                    if (program < 0) {
+                        out.file.putByte(MOLECULE);
+                        out.file.putString(concentration.getKey().toString());
+                    } else {
+                        out.file.putByte(PROGRAM);
+                        out.file.putVarInt(program);
+                    }
+                    out.file.putBytes(out.values.encodeValue(concentration.getValue()));
+                }
+                final List<Reaction<Object>> reactions = node.getReactions();
+                out.file.putVarInt(reactions.size());
+                for (final Reaction<Object> reaction : reactions) {
+                    out.file.putDouble(reaction.getTau().toDouble());
+                }
+                out.file.putVarInt(programs.size());
+                for (final RunProtelisProgram program : programs) {
+                    out.select(program);
+                    out.file.putBytes(out.programState(program));
+                    node.getNetworkManager(program).save(out);
+                }
+            }
+            final long dictionaries = out.file.position();
+            out.file.putVarInt(out.dictionaries.size());
+            for (final Map.Entry<String, CodePathDictionary> dictionary : out.dictionaries.entrySet()) {
+                out.file.putString(dictionary.getKey());
+                out.file.putBytes(serialize(dictionary.getValue().toArray()));
+            }
+            out.file.putLong(dictionaries);
+            return out.file.position();
+        }
+    }
+
+    /**
+     * @param env
+     *            an environment built from the same simulation file as the
+     *            one the checkpoint was written from
+     * @param file
+     *            the checkpoint file
+     * @throws IOException
+     *             if the file can not be read, or does not match env
+     */
+    public static void restore(final Environment<Object> env, final Path file) throws IOException {
+        try (Input in = new Input(env, file)) {
+            if (in.file.getInt() != MAGIC || in.file.getInt() != VERSION) {
+                throw new IOException(file + " is not a checkpoint");
+            }
+            final int nodes = in.file.getVarInt();
+            for (int n = 0; n < nodes; n++) {
+                final ProtelisNode node = in.node(in.file.getInt());
+                final List<RunProtelisProgram> programs = node.getPrograms();
+                final Map<Molecule, Object> contents = new LinkedHashMap<>();
+                final int concentrations = in.file.getVarInt();
+                for (int c = 0; c < concentrations; c++) {
+                    final Molecule molecule;
+                    if (in.file.getByte() == PROGRAM) {
+                        final int program = in.file.getVarInt();
+                        if (program >= programs.size()) {
+                            throw new IOException("Programs of node " + node.getId() + " do not match the checkpoint");
+                        }
+                        molecule = programs.get(program);
+                    } else {
+                        molecule = ProtelisIncarnation.instance().createMolecule(in.file.getString());
+                    }
+                    contents.put(molecule, in.values.decodeValue(in.file.getBytes()));
+                }
+                restoreContents(node, contents);
+                final List<Reaction<Object>> reactions = node.getReactions();
+                if (in.file.getVarInt() != reactions.size()) {
+                    throw new IOException("Reactions of node " + node.getId() + " do not match the checkpoint");
+                }
+                for (final Reaction<Object> reaction : reactions) {
+                    restoreTime(reaction, in.file.getDouble());
+                }
+                if (in.file.getVarInt() != programs.size()) {
+                    throw new IOException("Programs of node " + node.getId() + " do not match the checkpoint");
+                }
+                for (final RunProtelisProgram program : programs) {
+                    in.select(program);
+                    in.programState(program);
+                    node.getNetworkManager(program).load(in);
+                }
+            }
+        }
+    }
+
+    private static int indexOf(final List<RunProtelisProgram> programs, final Molecule molecule) {
+        for (int i = 0; i < programs.size(); i++) {
+            if (programs.get(i) == molecule) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Puts a periodic reaction back at its time in the checkpoint
+     */
+    @SuppressWarnings("unchecked")
+    private static void restoreTime(final Reaction<Object> reaction, final double tau) throws IOException {
+        final TimeDistribution<Object> time = reaction.getTimeDistribution();
+        if (time instanceof DiracComb && Double.compare(reaction.getTau().toDouble(), tau) != 0) {
+            if (!(time instanceof RestorableDiracComb)) {
+                throw new IOException("Reaction " + reaction + " can not be moved to time " + tau + ": a "
+                        + RestorableDiracComb.class.getSimpleName() + " is required");
+            }
+            ((RestorableDiracComb<Object>) time).setNextOccurrence(new DoubleTime(tau));
+        }
+    }
+
+    private static void restoreContents(final ProtelisNode node, final Map<Molecule, Object> contents) {
+        final Set<Molecule> stale = new HashSet<>(node.getContents().keySet());
+        for (final Map.Entry<Molecule, Object> concentration : contents.entrySet()) {
+            stale.remove(concentration.getKey());
+            node.setConcentration(concentration.getKey(), concentration.getValue());
+        }
+        stale.forEach(node::removeConcentration);
+    }
+
+    private static List<ProtelisNode> protelisNodes(final Environment<Object> env) {
+        final List<ProtelisNode> res = new ArrayList<>(env.getNodesNumber());
+        for (final Node<Object> node : env.getNodes()) {
+            if (node instanceof ProtelisNode) {
+                res.add((ProtelisNode) node);
+            }
+        }
+        Collections.sort(res, Comparator.comparingInt(ProtelisNode::getId));
+        return res;
+    }
+
+    private static byte[] serialize(final Object object) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(final byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (final ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Checkpoint being written, as seen by the network managers.
+     */
+    static final class Output implements AutoCloseable {
+        private final MappedFileWriter file;
+        private final Environment<Object> env;
+        private final StateCodec values;
+        private final Map<String, CodePathDictionary> dictionaries = new LinkedHashMap<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private StateCodec codec;
+
+        private Output(final Environment<Object> env, final Path path) throws IOException {
+            file = new MappedFileWriter(path);
+            this.env = env;
+            values = new StateCodec(null, env);
+        }
+
+        private void select(final RunProtelisProgram program) throws IOException {
+            final String source = program.getSource();
+            final CodePathDictionary dictionary = ProtelisIncarnation.instance().getProgramRegistry().getDictionary(source);
+            Integer index = indexes.get(source);
+            if (index == null) {
+                index = dictionaries.size();
+                dictionaries.put(source, dictionary);
+                indexes.put(source, index);
+            }
+            file.putVarInt(index);
+            codec = new StateCodec(dictionary, env);
+        }
+
+        private byte[] programState(final RunProtelisProgram program) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new StateOutputStream(bytes, env)) {
+                program.writeState(out);
+            }
+            return bytes.toByteArray();
+        }
+
+        MappedFileWriter file() {
+            return file;
+        }
+
+        void putState(final Map<CodePath, Object> state) throws IOException {
+            if (state == null) {
+                file.putByte((byte) 0);
+            } else {
+                file.putByte((byte) 1);
+                file.putBytes(codec.encode(state));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Checkpoint being restored, as seen by the network managers.
+     */
+    static final class Input implements AutoCloseable {
+        private final MappedFileReader file;
+        private final Environment<Object> env;
+        private final StateCodec values;
+        private final List<CodePath[]> dictionaries = new ArrayList<>();
+        private final List<String> sources = new ArrayList<>();
+        private CodePath[] paths;
+        private StateCodec codec;
+
+        private Input(final Environment<Object> env, final Path path) throws IOException {
+            file = new MappedFileReader(path);
+            this.env = env;
+            values = new StateCodec(null, env);
+            file.seek(file.size() - Long.BYTES);
+            file.seek(file.getLong());
+            final int count = file.getVarInt();
+            for (int i = 0; i < count; i++) {
+                sources.add(file.getString());
+                dictionaries.add((CodePath[]) deserialize(file.getBytes()));
+            }
+            file.seek(0);
+        }
+
+        private void select(final RunProtelisProgram program) throws IOException {
+            final int index = file.getVarInt();
+            if (!sources.get(index).equals(program.getSource())) {
+                throw new IOException("Program " + program.getSource() + " does not match the checkpoint");
+            }
+            paths = dictionaries.get(index);
+            codec = new StateCodec(ProtelisIncarnation.instance().getProgramRegistry().getDictionary(program.getSource()), env);
+        }
+
+        private void programState(final RunProtelisProgram program) throws IOException {
+            try (ObjectInputStream in = new StateInputStream(new ByteArrayInputStream(file.getBytes()), env)) {
+                program.readState(in);
+            } catch (final ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+
+        MappedFileReader file() {
+            return file;
+        }
+
+        ProtelisNode node(final int id) throws IOException {
+            final Node<Object> node = env.getNodeByID(id);
+            if (node instanceof ProtelisNode) {
+                return (ProtelisNode) node;
+            }
+            throw new IOException("Node " + id + " does not match the checkpoint");
+        }
+
+        Map<CodePath, Object> getState() throws IOException {
+            if (file.getByte() == 0) {
+                return null;
+            }
+            final CodePath[] keys = paths;
+            return codec.decode(file.getBytes(), Collections.emptyMap(), code -> keys[code]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /*
+     * Devices and the environment are written as references
+     */
+    private static final class DeviceReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int id;
+
+        DeviceReference(final int id) {
+            this.id = id;
+        }
+    }
+
+    private static final class EnvironmentReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class StateOutputStream extends ObjectOutputStream {
+        private final Environment<Object> env;
+
+        StateOutputStream(final OutputStream out, final Environment<Object> env) throws IOException {
+            super(out);
+            this.env = env;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(final Object obj) {
+            if (obj instanceof ProtelisNode) {
+                return new DeviceReference(((ProtelisNode) obj).getId());
+            }
+            if (obj == env) {
+                return new EnvironmentReference();
+            }
+            return obj;
+        }
+    }
+
+    private static final class StateInputStream extends ObjectInputStream {
+        private final Environment<Object> env;
+
+        StateInputStream(final InputStream in, final Environment<Object> env) throws IOException {
+            super(in);
+            this.env = env;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(final Object obj) {
+            if (obj instanceof DeviceReference) {
+                return env.getNodeByID(((DeviceReference) obj).id);
+            }
+            if (obj instanceof EnvironmentReference) {
+                return env;
+            }
+            return obj;
+        }
+    }
+
+}
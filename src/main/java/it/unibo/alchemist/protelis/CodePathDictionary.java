@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Thread-safe dictionary assigning a dense integer code to each
+ * {@link CodePath} of a program. All the nodes running the same program share
+ * the same code paths, and thus the same dictionary, so the states they
+ * exchange can be keyed by integers (see {@link EncodedState}).
+ */
+public final class CodePathDictionary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CAPACITY = 64;
+    private final ConcurrentMap<CodePath, Integer> codes = new ConcurrentHashMap<>();
+    private volatile CodePath[] paths = new CodePath[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @param path
+     *            the {@link CodePath}
+     * @return the code of path, assigned if it did not have one
+     */
+    public int encode(final CodePath path) {
+        final Integer code = codes.get(path);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            final Integer existing = codes.get(path);
+            if (existing != null) {
+                return existing;
+            }
+            if (size == paths.length) {
+                paths = Arrays.copyOf(paths, size * 2);
+            }
+            paths[size] = path;
+            codes.put(path, size);
+            return size++;
+        }
+    }
+
+    /**
+     * @param path
+     *            the {@link CodePath}
+     * @return the code of path, or -1 if it has none
+     */
+    public int indexOf(final CodePath path) {
+        final Integer code = codes.get(path);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * @param code
+     *            a code returned by {@link #encode(CodePath)}
+     * @return the corresponding {@link CodePath}
+     */
+    public CodePath decode(final int code) {
+        return paths[code];
+    }
+
+    /**
+     * @param state
+     *            the state to encode
+     * @return an {@link EncodedState} with the same content as state
+     */
+    public EncodedState encode(final Map<CodePath, Object> state) {
+        if (state instanceof EncodedState && ((EncodedState) state).getDictionary() == this) {
+            return (EncodedState) state;
+        }
+        /*
+         * Sort the entries by code, packing code and position in a long
+         */
+        final Object[] values = new Object[state.size()];
+        final long[] packed = new long[values.length];
+        int i = 0;
+        for (final Map.Entry<CodePath, Object> entry : state.entrySet()) {
+            packed[i] = (long) encode(entry.getKey()) << Integer.SIZE | i;
+            values[i] = entry.getValue();
+            i++;
+        }
+        Arrays.sort(packed);
+        final int[] sortedCodes = new int[values.length];
+        final Object[] sortedValues = new Object[values.length];
+        for (i = 0; i < packed.length; i++) {
+            sortedCodes[i] = (int) (packed[i] >>> Integer.SIZE);
+            sortedValues[i] = values[(int) packed[i]];
+        }
+        return new EncodedState(this, sortedCodes, sortedValues);
+    }
+
+    /**
+     * @return all the {@link CodePath}s, indexed by their code
+     */
+    public synchronized CodePath[] toArray() {
+        return Arrays.copyOf(paths, size);
+    }
+
+    /**
+     * @return the number of code paths in this dictionary
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + size() + " paths]";
+    }
+
+}
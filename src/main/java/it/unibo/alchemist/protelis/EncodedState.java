@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.protelis.vm.util.CodePath;
+
+/**
+ * Immutable state of a device, stored as an array of {@link CodePath} codes
+ * sorted in ascending order, and a parallel array of values. Besides being
+ * much smaller than a hash map, it can be accessed by code without hashing
+ * any {@link CodePath} (see {@link #getByCode(int)}).
+ */
+public final class EncodedState extends AbstractMap<CodePath, Object> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final CodePathDictionary dictionary;
+    private final int[] codes;
+    private final Object[] values;
+
+    EncodedState(final CodePathDictionary dictionary, final int[] codes, final Object[] values) {
+        this.dictionary = dictionary;
+        this.codes = codes;
+        this.values = values;
+    }
+
+    /**
+     * @return the {@link CodePathDictionary} used to encode this state
+     */
+    public CodePathDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param code
+     *            the code of a {@link CodePath}
+     * @return the value associated to code, or null if there is none
+     */
+    public Object getByCode(final int code) {
+        final int position = Arrays.binarySearch(codes, code);
+        return position < 0 ? null : values[position];
+    }
+
+    private int positionOf(final Object key) {
+        if (key instanceof CodePath) {
+            final int code = dictionary.indexOf((CodePath) key);
+            if (code >= 0) {
+                return Arrays.binarySearch(codes, code);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Object get(final Object key) {
+        final int position = positionOf(key);
+        return position < 0 ? null : values[position];
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return positionOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return codes.length;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj instanceof EncodedState && ((EncodedState) obj).dictionary == dictionary) {
+            final EncodedState other = (EncodedState) obj;
+            return Arrays.equals(codes, other.codes) && Arrays.equals(values, other.values);
+        }
+        return super.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    @Override
+    public Set<Map.Entry<CodePath, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<CodePath, Object>>() {
+            @Override
+            public Iterator<Map.Entry<CodePath, Object>> iterator() {
+                return new Iterator<Map.Entry<CodePath, Object>>() {
+                    private int next;
+                    @Override
+                    public boolean hasNext() {
+                        return next < codes.length;
+                    }
+                    @Override
+                    public Map.Entry<CodePath, Object> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final Map.Entry<CodePath, Object> res =
+                                new AbstractMap.SimpleImmutableEntry<>(dictionary.decode(codes[next]), values[next]);
+                        next++;
+                        return res;
+                    }
+                };
+            }
+            @Override
+            public int size() {
+                return codes.length;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Fixed-size histogram of non-negative long values, with one bucket per power
+ * of two. Recording never allocates. Not thread-safe: each histogram is meant
+ * to have a single writer.
+ */
+public final class Histogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int BUCKETS = Long.SIZE + 1;
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private long last;
+
+    /**
+     * @param value
+     *            the value to record. Negative values are recorded as zero
+     */
+    public void record(final long value) {
+        final long v = Math.max(0, value);
+        counts[Long.SIZE - Long.numberOfLeadingZeros(v)]++;
+        count++;
+        sum += v;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+        last = v;
+    }
+
+    /**
+     * Adds all the values recorded by another histogram to this one.
+     * 
+     * @param other
+     *            the other histogram
+     */
+    public void merge(final Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return the last recorded value, or zero if there are none
+     */
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the recorded values
+     */
+    public long getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the mean of the recorded values, or NaN if there are none
+     */
+    public double getMean() {
+        return count == 0 ? Double.NaN : (double) sum / count;
+    }
+
+    /**
+     * @return the minimum recorded value, or zero if there are none
+     */
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return the maximum recorded value, or zero if there are none
+     */
+    public long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    /**
+     * @param quantile
+     *            a value in [0, 1]
+     * @return an upper bound of the quantile, at most twice its real value
+     */
+    public long getQuantile(final double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Invalid quantile: " + quantile);
+        }
+        final long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return i == 0 ? 0 : Math.min(max, i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1);
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Discards all the recorded values.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+        last = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "[count=" + count + ", mean=" + getMean() + ", min=" + getMin()
+                + ", p50=" + getQuantile(0.5) + ", p99=" + getQuantile(0.99) + ", max=" + getMax() + "]";
+    }
+
+}
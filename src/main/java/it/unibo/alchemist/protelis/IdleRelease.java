@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+
+/**
+ * Frees the memory of the Protelis programs that stayed idle for longer than
+ * their {@link RunProtelisProgram#setIdleRelease(double) idle threshold}.
+ * Meant to be invoked periodically, e.g. by an output monitor, while the
+ * programs are not executing.
+ */
+public final class IdleRelease {
+
+    private IdleRelease() {
+    }
+
+    /**
+     * @param env
+     *            the {@link Environment}
+     * @param now
+     *            the current simulated time
+     * @return the number of programs whose memory was freed
+     */
+    public static int sweep(final Environment<Object> env, final double now) {
+        int released = 0;
+        for (final Node<Object> node : env.getNodes()) {
+            if (node instanceof ProtelisNode) {
+                for (final RunProtelisProgram program : ((ProtelisNode) node).getPrograms()) {
+                    if (program.releaseIfIdle(now)) {
+                        released++;
+                    }
+                }
+            }
+        }
+        return released;
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mailbox of a receiver, keeping only the latest message of each sender.
+ * Senders {@link #post(Object, Object)} into a buffer, that the receiver
+ * {@link #drain()}s at the beginning of its round.
+ *
+ * There are two buffers, allocated once: draining swaps them, handing the
+ * filled one to the receiver, and the other one is cleared in place when it
+ * is drained next. A drained map is thus valid until the next
+ * {@link #drain()}.
+ *
+ * In sequential mode (default), senders run one at a time, the buffers are
+ * plain maps and messages are drained in order of arrival.
+ *
+ * In concurrent mode (see {@link #setConcurrent(boolean)}), senders may post
+ * from multiple threads at once. The buffers are concurrent sorted maps, and
+ * the receiver waits for the senders still posting into the buffer it
+ * drains, so a message posted while the receiver drains is delivered either
+ * in this round or in the next one, but never lost nor delivered twice.
+ * Drained messages are ordered by sender, according to the comparator
+ * provided at construction time, so the iteration order does not depend on
+ * the order in which senders were scheduled.
+ *
+ * @param <K>
+ *            sender type
+ * @param <M>
+ *            message type
+ */
+public final class Mailbox<K, M> implements Serializable {
+
+    private static final long serialVersionUID = 2L;
+    private final Comparator<? super K> order;
+    private boolean concurrent;
+    private volatile Buffer<K, M> back;
+    private Buffer<K, M> front;
+
+    /**
+     * Builds a sequential mailbox.
+     * 
+     * @param senderOrder
+     *            the order in which messages are drained in concurrent mode.
+     *            Must be {@link Serializable} if the mailbox gets serialized
+     */
+    public Mailbox(final Comparator<? super K> senderOrder) {
+        this(senderOrder, false);
+    }
+
+    /**
+     * @param senderOrder
+     *            the order in which messages are drained in concurrent mode.
+     *            Must be {@link Serializable} if the mailbox gets serialized
+     * @param concurrent
+     *            true if senders may post concurrently
+     */
+    public Mailbox(final Comparator<? super K> senderOrder, final boolean concurrent) {
+        order = Objects.requireNonNull(senderOrder);
+        this.concurrent = concurrent;
+        back = newBuffer();
+        front = newBuffer();
+    }
+
+    private Buffer<K, M> newBuffer() {
+        return new Buffer<>(concurrent ? new ConcurrentSkipListMap<>(order) : new LinkedHashMap<>());
+    }
+
+    /**
+     * Switches between sequential and concurrent mode, keeping the pending
+     * messages. Must not be called while senders are posting.
+     * 
+     * @param enabled
+     *            true if senders may post concurrently
+     */
+    public void setConcurrent(final boolean enabled) {
+        if (enabled != concurrent) {
+            final Map<K, M> pending = back.messages;
+            concurrent = enabled;
+            back = newBuffer();
+            front = newBuffer();
+            back.messages.putAll(pending);
+        }
+    }
+
+    /**
+     * @return true if senders may post concurrently
+     */
+    public boolean isConcurrent() {
+        return concurrent;
+    }
+
+    /**
+     * Publishes a message, replacing any undelivered message from the same
+     * sender. In concurrent mode, safe to call from multiple threads.
+     *
+     * @param sender
+     *            the sender
+     * @param message
+     *            the message
+     */
+    public void post(final K sender, final M message) {
+        if (!concurrent) {
+            back.messages.put(sender, message);
+            return;
+        }
+        while (true) {
+            final Buffer<K, M> target = back;
+            target.writers.incrementAndGet();
+            try {
+                /*
+                 * If the buffers were swapped meanwhile, the receiver may not
+                 * wait for this post: retry on the new buffer
+                 */
+                if (target == back) {
+                    target.messages.put(sender, message);
+                    return;
+                }
+            } finally {
+                target.writers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes all the pending messages. Meant to be called by the receiver
+     * only.
+     *
+     * @return the pending messages, in order of arrival in sequential mode
+     *         and ordered by sender in concurrent mode. The map is reused,
+     *         and only valid until the next call
+     */
+    public Map<K, M> drain() {
+        final Buffer<K, M> drained = back;
+        front.messages.clear();
+        back = front;
+        front = drained;
+        if (concurrent) {
+            while (drained.writers.get() != 0) {
+                Thread.yield();
+            }
+        }
+        return drained.messages;
+    }
+
+    /**
+     * @return a copy of the pending messages, in drain order. Messages are
+     *         not removed
+     */
+    public Map<K, M> snapshot() {
+        return new LinkedHashMap<>(back.messages);
+    }
+
+    /**
+     * @return true if there are no pending messages
+     */
+    public boolean isEmpty() {
+        return back.messages.isEmpty();
+    }
+
+    /**
+     * @return the number of pending messages
+     */
+    public int size() {
+        return back.messages.size();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + back.messages;
+    }
+
+    private static final class Buffer<K, M> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final Map<K, M> messages;
+        /*
+         * Concurrent mode: senders currently posting into this buffer
+         */
+        private final AtomicInteger writers = new AtomicInteger();
+
+        Buffer(final Map<K, M> messages) {
+            this.messages = messages;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential reader of files written by {@link MappedFileWriter}. The file is
+ * mapped one chunk at a time.
+ */
+public final class MappedFileReader implements Closeable {
+
+    private static final int VARINT_SHIFT = 7;
+    private static final int VARINT_MASK = 0x7F;
+    private static final int VARINT_MORE = 0x80;
+    private final FileChannel channel;
+    private final int chunk;
+    private final long size;
+    private MappedByteBuffer buffer;
+    private long base;
+
+    /**
+     * @param file
+     *            the file to read
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public MappedFileReader(final Path file) throws IOException {
+        this(file, MappedFileWriter.DEFAULT_CHUNK);
+    }
+
+    /**
+     * @param file
+     *            the file to read
+     * @param chunk
+     *            the size of the mapped chunks
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public MappedFileReader(final Path file, final int chunk) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.chunk = chunk;
+        size = channel.size();
+        map(0, 0);
+    }
+
+    private void map(final long position, final int bytes) throws IOException {
+        base = position;
+        buffer = channel.map(MapMode.READ_ONLY, base, Math.min(size - base, Math.max(chunk, bytes)));
+    }
+
+    private void ensure(final int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            if (position() + bytes > size) {
+                throw new EOFException("Can not read " + bytes + " bytes at " + position() + ", size is " + size);
+            }
+            map(position(), bytes);
+        }
+    }
+
+    /**
+     * @param position
+     *            the position to read from
+     * @throws IOException
+     *             if the position is outside the file
+     */
+    public void seek(final long position) throws IOException {
+        if (position < 0 || position > size) {
+            throw new EOFException("Can not seek to " + position + ", size is " + size);
+        }
+        if (position >= base && position <= base + buffer.limit()) {
+            buffer.position((int) (position - base));
+        } else {
+            map(position, 0);
+        }
+    }
+
+    /**
+     * @return the next byte
+     * @throws IOException
+     *             at the end of the file
+     */
+    public byte getByte() throws IOException {
+        ensure(1);
+        return buffer.get();
+    }
+
+    /**
+     * @return the next int
+     * @throws IOException
+     *             at the end of the file
+     */
+    public int getInt() throws IOException {
+        ensure(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    /**
+     * @return the next long
+     * @throws IOException
+     *             at the end of the file
+     */
+    public long getLong() throws IOException {
+        ensure(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    /**
+     * @return the next double
+     * @throws IOException
+     *             at the end of the file
+     */
+    public double getDouble() throws IOException {
+        ensure(Double.BYTES);
+        return buffer.getDouble();
+    }
+
+    /**
+     * @return the next int written by
+     *         {@link MappedFileWriter#putVarInt(int)}
+     * @throws IOException
+     *             at the end of the file
+     */
+    public int getVarInt() throws IOException {
+        int res = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = getByte();
+            res |= (b & VARINT_MASK) << shift;
+            shift += VARINT_SHIFT;
+        } while ((b & VARINT_MORE) != 0);
+        return res;
+    }
+
+    /**
+     * @return the next array written by
+     *         {@link MappedFileWriter#putBytes(byte[])}
+     * @throws IOException
+     *             at the end of the file
+     */
+    public byte[] getBytes() throws IOException {
+        final byte[] res = new byte[getVarInt()];
+        ensure(res.length);
+        buffer.get(res);
+        return res;
+    }
+
+    /**
+     * @return the next string written by
+     *         {@link MappedFileWriter#putString(String)}
+     * @throws IOException
+     *             at the end of the file
+     */
+    public String getString() throws IOException {
+        return new String(getBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the current position
+     */
+    public long position() {
+        return base + buffer.position();
+    }
+
+    /**
+     * @return the size of the file
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return true if the whole file has been read
+     */
+    public boolean isAtEnd() {
+        return position() >= size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        channel.close();
+    }
+
+}
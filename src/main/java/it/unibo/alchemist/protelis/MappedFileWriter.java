@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sequential writer of binary data into a memory-mapped file. The file is
+ * mapped one chunk at a time, so its size is not bounded by the address space
+ * nor known in advance; it is truncated to the written size when closed.
+ */
+public final class MappedFileWriter implements Closeable {
+
+    /**
+     * Default size of the mapped chunks.
+     */
+    public static final int DEFAULT_CHUNK = 1 << 26;
+    private static final int VARINT_SHIFT = 7;
+    private static final int VARINT_MASK = 0x7F;
+    private static final int VARINT_MORE = 0x80;
+    private final FileChannel channel;
+    private final int chunk;
+    private MappedByteBuffer buffer;
+    private long base;
+
+    /**
+     * @param file
+     *            the file to write. It is created, or overwritten
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public MappedFileWriter(final Path file) throws IOException {
+        this(file, DEFAULT_CHUNK);
+    }
+
+    /**
+     * @param file
+     *            the file to write. It is created, or overwritten
+     * @param chunk
+     *            the size of the mapped chunks
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public MappedFileWriter(final Path file, final int chunk) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.chunk = chunk;
+        buffer = channel.map(MapMode.READ_WRITE, 0, chunk);
+    }
+
+    private void ensure(final int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            base += buffer.position();
+            buffer = channel.map(MapMode.READ_WRITE, base, Math.max(chunk, bytes));
+        }
+    }
+
+    /**
+     * @param value
+     *            the byte to write
+     * @throws IOException
+     *             if the file can not be extended
+     */
+    public void putByte(final byte value) throws IOException {
+        ensure(1);
+        buffer.put(value);
+    }
+
+    /**
+     * @param value
+     *            the int to write
+     * @throws IOException
+     *             if the file can not be extended
+     */
+    public void putInt(final int value) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(value);
+    }
+
+    /**
+     * @param value
+     *            the long to write
+     * @throws IOException
+     *             if the file can not be extended
+     */
+    public void putLong(final long value) throws IOException {
+        ensure(Long.BYTES);
+        buffer.putLong(value);
+    }
+
+    /**
+     * @param value
+     *            the double to write
+     * @throws IOException
+     *             if the file can not be extended
+     */
+    public void putDouble(final double value) throws IOException {
+        ensure(Double.BYTES);
+        buffer.putDouble(value);
+    }
+
+    /**
+     * Writes a non-negative int in one to five bytes.
+     * 
+     * @param value
+     *            the int to write
+     * @throws IOException
+     *             if the file can not be extended
+     */
+    public void putVarInt(final int value) throws IOException {
+        ensure(Integer.BYTES + 1);
+        int v = value;
+        while ((v & ~VARINT_MASK) != 0) {
+            buffer.put((byte) (v & VARINT_MASK | VARINT_MORE));
+            v >>>= VARINT_SHIFT;
+        }
+        buffer.put((byte) v);
+    }
+
+    /**
+     * Writes an array, preceded by its length.
+     * 
+     * @param bytes
+     *            the bytes to write
+     * @throws IOException
+     *             if the file can not be extended
+     */
+    public void putBytes(final byte[] bytes) throws IOException {
+        putVarInt(bytes.length);
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * @param value
+     *            the string to write, in UTF-8
+     * @throws IOException
+     *             if the file can not be extended
+     */
+    public void putString(final String value) throws IOException {
+        putBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long position() {
+        return base + buffer.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        final long size = position();
+        buffer.force();
+        buffer = null;
+        try {
+            channel.truncate(size);
+        } finally {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import it.unibo.alchemist.model.interfaces.Environment;
+
+/**
+ * Collects the {@link ProgramMetrics} of the programs of an environment with
+ * metrics enabled, so that simulations running in the same JVM do not mix
+ * their metrics. Meant to be queried once the simulation is over (or
+ * paused), as histograms are not safe to read while programs are running.
+ */
+public final class MetricsRegistry {
+
+    private static final Cache<Environment<?>, MetricsRegistry> REGISTRIES = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+    private final Set<ProgramMetrics> metrics = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private MetricsRegistry() {
+    }
+
+    /**
+     * @param env
+     *            the environment
+     * @return the registry of the environment, created if it did not exist
+     */
+    public static MetricsRegistry of(final Environment<?> env) {
+        return REGISTRIES.asMap().computeIfAbsent(Objects.requireNonNull(env), e -> new MetricsRegistry());
+    }
+
+    /**
+     * @param programMetrics
+     *            the {@link ProgramMetrics} to collect
+     */
+    public void register(final ProgramMetrics programMetrics) {
+        synchronized (metrics) {
+            metrics.add(Objects.requireNonNull(programMetrics));
+        }
+    }
+
+    /**
+     * @return the metrics of every program still alive, ordered by node ID
+     */
+    public List<ProgramMetrics> getAll() {
+        final List<ProgramMetrics> res;
+        synchronized (metrics) {
+            res = new ArrayList<>(metrics);
+        }
+        Collections.sort(res, (m1, m2) -> Integer.compare(m1.getNode(), m2.getNode()));
+        return res;
+    }
+
+    /**
+     * @return for each metric, a histogram merging those of all the programs
+     */
+    public Map<String, Histogram> aggregate() {
+        final Map<String, Histogram> res = new LinkedHashMap<>();
+        for (final ProgramMetrics programMetrics : getAll()) {
+            for (final Map.Entry<String, Histogram> metric : programMetrics.getHistograms().entrySet()) {
+                res.computeIfAbsent(metric.getKey(), k -> new Histogram()).merge(metric.getValue());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Forgets all the registered metrics. Programs keep recording in their
+     * own.
+     */
+    public void clear() {
+        synchronized (metrics) {
+            metrics.clear();
+        }
+    }
+
+}
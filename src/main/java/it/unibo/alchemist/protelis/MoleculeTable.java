@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unibo.alchemist.model.implementations.molecules.SimpleMolecule;
+import it.unibo.alchemist.model.interfaces.Molecule;
+
+/**
+ * Thread-safe dictionary of interned {@link Molecule}s. Each name maps to a
+ * single {@link Molecule} instance and to a dense integer slot, that nodes
+ * can use to index their variables in an array.
+ * 
+ * The table is bounded: once it is full, names are no longer interned, and
+ * get a fresh {@link Molecule} with no slot (index -1). Nodes store those
+ * variables in their regular contents only.
+ */
+public final class MoleculeTable {
+
+    /**
+     * Default maximum number of interned molecules.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+    private final int capacity;
+    private final ConcurrentMap<String, Slot> byName = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Molecule, Slot> byMolecule = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Slot> byIndex = new ConcurrentHashMap<>();
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Builds a table with the default capacity.
+     */
+    public MoleculeTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            the maximum number of interned molecules
+     */
+    public MoleculeTable(final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param name
+     *            the molecule name
+     * @return the {@link Slot} for this name, created if it did not exist. If
+     *         the table is full, a new {@link Slot} with index -1 is returned,
+     *         and it is not retained
+     */
+    public Slot intern(final String name) {
+        final Slot existing = byName.get(Objects.requireNonNull(name));
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (this) {
+            final Slot raced = byName.get(name);
+            if (raced != null) {
+                return raced;
+            }
+            if (next.get() >= capacity) {
+                return new Slot(name, new SimpleMolecule(name), -1);
+            }
+            final Slot slot = new Slot(name, new SimpleMolecule(name), next.get());
+            byMolecule.put(slot.molecule, slot);
+            byIndex.put(slot.index, slot);
+            byName.put(name, slot);
+            /*
+             * Published last: readers seeing the new size find the slot
+             */
+            next.incrementAndGet();
+            return slot;
+        }
+    }
+
+    /**
+     * @param name
+     *            the molecule name
+     * @return the {@link Slot} for this name, or null if it has not been
+     *         interned
+     */
+    public Slot find(final String name) {
+        return byName.get(Objects.requireNonNull(name));
+    }
+
+    /**
+     * @param mol
+     *            the {@link Molecule}
+     * @return the slot index of the molecule, or -1 if it has not been
+     *         interned by this table
+     */
+    public int indexOf(final Molecule mol) {
+        final Slot slot = byMolecule.get(mol);
+        return slot == null ? -1 : slot.index;
+    }
+
+    /**
+     * @param index
+     *            the slot index
+     * @return the {@link Slot} with this index, or null if there is none
+     */
+    public Slot getSlot(final int index) {
+        return byIndex.get(index);
+    }
+
+    /**
+     * @return the number of interned molecules
+     */
+    public int size() {
+        return next.get();
+    }
+
+    /**
+     * @return the maximum number of interned molecules
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + byName.keySet();
+    }
+
+    /**
+     * An interned {@link Molecule} along with its index.
+     */
+    public static final class Slot {
+        private final String name;
+        private final Molecule molecule;
+        private final int index;
+
+        private Slot(final String name, final Molecule molecule, final int index) {
+            this.name = name;
+            this.molecule = molecule;
+            this.index = index;
+        }
+
+        /**
+         * @return the molecule name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the interned {@link Molecule}
+         */
+        public Molecule getMolecule() {
+            return molecule;
+        }
+
+        /**
+         * @return the dense index of this molecule, or -1 if it could not be
+         *         interned
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public String toString() {
+            return molecule + "@" + index;
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Mean and variance of a series of samples at each time step, computed
+ * online with Welford's algorithm: samples are not stored, and each of them
+ * costs a constant time. Thread-safe. NaN samples are ignored.
+ */
+public final class OnlineStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_STEPS = 16;
+    private long[] counts = new long[INITIAL_STEPS];
+    private double[] means = new double[INITIAL_STEPS];
+    private double[] squares = new double[INITIAL_STEPS];
+    private int steps;
+
+    /**
+     * @param step
+     *            the time step
+     * @param value
+     *            the sample
+     */
+    public synchronized void accept(final int step, final double value) {
+        if (step < 0) {
+            throw new IllegalArgumentException("Invalid step: " + step);
+        }
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (step >= counts.length) {
+            final int length = Math.max(step + 1, counts.length * 2);
+            counts = Arrays.copyOf(counts, length);
+            means = Arrays.copyOf(means, length);
+            squares = Arrays.copyOf(squares, length);
+        }
+        steps = Math.max(steps, step + 1);
+        final long count = ++counts[step];
+        final double delta = value - means[step];
+        means[step] += delta / count;
+        squares[step] += delta * (value - means[step]);
+    }
+
+    /**
+     * @return the number of time steps, namely the highest step that
+     *         received a sample plus one
+     */
+    public synchronized int size() {
+        return steps;
+    }
+
+    /**
+     * @param step
+     *            the time step
+     * @return the number of samples at this step
+     */
+    public synchronized long getCount(final int step) {
+        return step < steps ? counts[step] : 0;
+    }
+
+    /**
+     * @param step
+     *            the time step
+     * @return the mean of the samples at this step, or NaN if there are none
+     */
+    public synchronized double getMean(final int step) {
+        return getCount(step) == 0 ? Double.NaN : means[step];
+    }
+
+    /**
+     * @param step
+     *            the time step
+     * @return the sample variance at this step, or NaN if there are less
+     *         than two samples
+     */
+    public synchronized double getVariance(final int step) {
+        final long count = getCount(step);
+        return count < 2 ? Double.NaN : squares[step] / (count - 1);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return getClass().getSimpleName() + "[" + steps + " steps]";
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds out, from the source of a program, which variables of the node it
+ * reads and writes. Only accesses through the {@code EnvironmentVariable}
+ * methods of {@code self}, with a string literal as name, can be resolved. If
+ * the program accesses the variables in any other way, passes {@code self}
+ * around, imports other modules, or is itself the name of a module, the
+ * analysis is undecidable. Comments are ignored.
+ */
+public final class ProgramAnalysis {
+
+    private static final String NAME = "\\(\\s*[\"']([^\"'\\\\]*)[\"']\\s*[,)]";
+    private static final Pattern WRITE = Pattern.compile(
+            "self\\s*\\.\\s*(?:put|remove)EnvironmentVariable\\s*" + NAME);
+    private static final Pattern READ = Pattern.compile(
+            "self\\s*\\.\\s*(?:get|has)EnvironmentVariable\\s*" + NAME);
+    private static final Pattern ANY_ACCESS = Pattern.compile(
+            "EnvironmentVariable|getExecutionEnvironment|\\benv\\b");
+    private static final Pattern SELF_AS_VALUE = Pattern.compile("\\bself\\b(?!\\s*\\.)");
+    private static final Pattern IMPORT = Pattern.compile("^\\s*import\\b", Pattern.MULTILINE);
+    private static final Pattern COMMENT_OR_STRING = Pattern.compile(
+            "//[^\\n]*|/\\*.*?\\*/|(\"(?:[^\"\\\\]|\\\\.)*\"|'(?:[^'\\\\]|\\\\.)*')", Pattern.DOTALL);
+    private static final Pattern MODULE_NAME = Pattern.compile("^\\s*[\\w.:]+\\s*$");
+    private static final ProgramAnalysis UNDECIDABLE = new ProgramAnalysis(null, null);
+    private final Set<String> reads;
+    private final Set<String> writes;
+
+    private ProgramAnalysis(final Set<String> reads, final Set<String> writes) {
+        this.reads = reads;
+        this.writes = writes;
+    }
+
+    /**
+     * @param program
+     *            the program source, or the name of a Protelis module
+     * @return the analysis of program
+     */
+    public static ProgramAnalysis of(final String program) {
+        final String source = stripComments(program);
+        if (MODULE_NAME.matcher(source).matches()
+                || IMPORT.matcher(source).find()
+                || SELF_AS_VALUE.matcher(source).find()) {
+            return UNDECIDABLE;
+        }
+        final Set<String> reads = new LinkedHashSet<>();
+        final Set<String> writes = new LinkedHashSet<>();
+        final int resolved = collect(READ, source, reads) + collect(WRITE, source, writes);
+        int accesses = 0;
+        final Matcher any = ANY_ACCESS.matcher(source);
+        while (any.find()) {
+            accesses++;
+        }
+        if (accesses != resolved) {
+            return UNDECIDABLE;
+        }
+        return new ProgramAnalysis(Collections.unmodifiableSet(reads), Collections.unmodifiableSet(writes));
+    }
+
+    /*
+     * Strings are kept as they are, as they may contain comment markers
+     */
+    private static String stripComments(final String source) {
+        final Matcher matcher = COMMENT_OR_STRING.matcher(source);
+        final StringBuffer res = new StringBuffer(source.length());
+        while (matcher.find()) {
+            matcher.appendReplacement(res, matcher.group(1) == null ? " " : Matcher.quoteReplacement(matcher.group(1)));
+        }
+        matcher.appendTail(res);
+        return res.toString();
+    }
+
+    private static int collect(final Pattern pattern, final String source, final Set<String> names) {
+        final Matcher matcher = pattern.matcher(source);
+        int res = 0;
+        while (matcher.find()) {
+            names.add(matcher.group(1));
+            res++;
+        }
+        return res;
+    }
+
+    /**
+     * @return true if the accessed variables are known
+     */
+    public boolean isDecidable() {
+        return reads != null;
+    }
+
+    /**
+     * @return the names of the variables the program may read, or an empty
+     *         {@link Optional} if they can not be determined
+     */
+    public Optional<Set<String>> getReads() {
+        return Optional.ofNullable(reads);
+    }
+
+    /**
+     * @return the names of the variables the program may write, or an empty
+     *         {@link Optional} if they can not be determined
+     */
+    public Optional<Set<String>> getWrites() {
+        return Optional.ofNullable(writes);
+    }
+
+    @Override
+    public String toString() {
+        return isDecidable() ? "reads " + reads + ", writes " + writes : "undecidable";
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import it.unibo.alchemist.model.ProtelisIncarnation;
+import it.unibo.alchemist.model.interfaces.Molecule;
+import it.unibo.alchemist.model.interfaces.Node;
+
+/**
+ * Runtime metrics of a program running on a node. Created by
+ * {@link it.unibo.alchemist.model.implementations.actions.RunProtelisProgram#enableMetrics(boolean)},
+ * and collected in the {@link MetricsRegistry} of its environment. If
+ * requested, the last value of each metric is also written on the node, as
+ * a molecule named after the metric and the program (see
+ * {@link #moleculeName(String, String)}), whenever the node contents are
+ * read, e.g. by an exporter.
+ */
+public final class ProgramMetrics implements Serializable {
+
+    /**
+     * Wall time of a round, in nanoseconds.
+     */
+    public static final String CYCLE_TIME = "protelisCycleTime";
+    /**
+     * Number of neighbors a message was delivered to.
+     */
+    public static final String RECIPIENTS = "protelisRecipients";
+    /**
+     * Number of {@link org.protelis.vm.util.CodePath} entries exported.
+     */
+    public static final String EXPORTED = "protelisExported";
+    /**
+     * Number of messages found in the inbox at the beginning of a round.
+     */
+    public static final String INBOX = "protelisInbox";
+    private static final long serialVersionUID = 1L;
+    private final int node;
+    private final String program;
+    private final boolean molecules;
+    private final Molecule[] published;
+    private boolean changed;
+    private final Histogram cycleTime = new Histogram();
+    private final Histogram recipients = new Histogram();
+    private final Histogram exported = new Histogram();
+    private final Histogram inbox = new Histogram();
+
+    /**
+     * @param node
+     *            the node ID
+     * @param program
+     *            the program name
+     * @param molecules
+     *            true if the last value of each metric can be written as a
+     *            molecule on the node, by {@link #publish(Node)}
+     */
+    public ProgramMetrics(final int node, final String program, final boolean molecules) {
+        this.node = node;
+        this.program = program;
+        this.molecules = molecules;
+        if (molecules) {
+            final ProtelisIncarnation incarnation = ProtelisIncarnation.instance();
+            published = new Molecule[] {
+                incarnation.createMolecule(moleculeName(CYCLE_TIME, program)),
+                incarnation.createMolecule(moleculeName(RECIPIENTS, program)),
+                incarnation.createMolecule(moleculeName(EXPORTED, program)),
+                incarnation.createMolecule(moleculeName(INBOX, program)),
+            };
+        } else {
+            published = new Molecule[0];
+        }
+    }
+
+    /**
+     * @param metric
+     *            the name of the metric, e.g. {@link #CYCLE_TIME}
+     * @param program
+     *            the name of the program
+     * @return the name of the molecule holding the last value of the metric
+     *         for the program, so that programs sharing a node do not
+     *         overwrite each other
+     */
+    public static String moleculeName(final String metric, final String program) {
+        return metric + "@" + program;
+    }
+
+    /**
+     * @param nanos
+     *            the duration of a round
+     */
+    public void recordCycle(final long nanos) {
+        cycleTime.record(nanos);
+        changed = true;
+    }
+
+    /**
+     * @param neighbors
+     *            the number of recipients of a message
+     * @param entries
+     *            the number of entries of the message
+     */
+    public void recordSend(final int neighbors, final int entries) {
+        recipients.record(neighbors);
+        exported.record(entries);
+        changed = true;
+    }
+
+    /**
+     * @param messages
+     *            the number of messages received
+     */
+    public void recordInbox(final int messages) {
+        inbox.record(messages);
+        changed = true;
+    }
+
+    /**
+     * Writes the last value of each metric on the node, if this was requested
+     * at construction time and something was recorded since the last time.
+     * Rounds only record in the histograms, which does not allocate nor
+     * change the node:
+     * {@link it.unibo.alchemist.model.implementations.nodes.ProtelisNode}
+     * calls this when its contents are read.
+     * 
+     * @param target
+     *            the node
+     * @return true if the metrics are published as molecules
+     */
+    public boolean publish(final Node<Object> target) {
+        if (molecules && changed) {
+            changed = false;
+            target.setConcentration(published[0], cycleTime.getLast());
+            target.setConcentration(published[1], recipients.getLast());
+            target.setConcentration(published[2], exported.getLast());
+            target.setConcentration(published[3], inbox.getLast());
+        }
+        return molecules;
+    }
+
+    /**
+     * @param mol
+     *            a {@link Molecule}
+     * @return true if mol is one of the molecules written by
+     *         {@link #publish(Node)}
+     */
+    public boolean isPublishedAs(final Molecule mol) {
+        for (final Molecule molecule : published) {
+            if (molecule.equals(mol)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the last value of each metric is written on the node
+     *         by {@link #publish(Node)}
+     */
+    public boolean isPublishingMolecules() {
+        return molecules;
+    }
+
+    /**
+     * @return the ID of the node
+     */
+    public int getNode() {
+        return node;
+    }
+
+    /**
+     * @return the name of the program
+     */
+    public String getProgram() {
+        return program;
+    }
+
+    /**
+     * @return all the histograms, by metric name
+     */
+    public Map<String, Histogram> getHistograms() {
+        final Map<String, Histogram> res = new LinkedHashMap<>();
+        res.put(CYCLE_TIME, cycleTime);
+        res.put(RECIPIENTS, recipients);
+        res.put(EXPORTED, exported);
+        res.put(INBOX, inbox);
+        return Collections.unmodifiableMap(res);
+    }
+
+    @Override
+    public String toString() {
+        return "Metrics of " + program + " on " + node + getHistograms();
+    }
+
+}
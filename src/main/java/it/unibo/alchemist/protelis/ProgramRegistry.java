@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.protelis.lang.ProtelisLoader;
+import org.protelis.vm.ProtelisProgram;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Thread-safe cache of parsed Protelis programs, keyed by their source. Each
+ * source is parsed at most once as long as it stays in the cache. Sources that
+ * are not valid programs are cached as well, so that they are not re-parsed
+ * either.
+ * 
+ * Parsed programs store the values they compute (e.g. the state of rep), so
+ * they are never shared: the cache keeps a serialized image of each program
+ * as it was parsed, and every request gets its own copy of it. Parsing is
+ * thus paid once per source, but every {@link #get(String)} and
+ * {@link #parse(String)} still deserializes the whole image, which costs
+ * time and memory proportional to the size of the program: callers needing
+ * many instances should request them once per node, not once per round.
+ *
+ * The {@link CodePathDictionary} and the {@link ProgramAnalysis} of each
+ * source are kept in the same cache entry, so they are bounded and evicted
+ * along with it. A source loaded again after being evicted gets a new
+ * dictionary: states already encoded refer to their own, and keep working.
+ */
+public final class ProgramRegistry {
+
+    /**
+     * Default maximum number of cached sources.
+     */
+    public static final long DEFAULT_SIZE = 1000;
+    /**
+     * Default expiration time, in {@link #DEFAULT_EXPIRATION_UNIT}s since last
+     * access.
+     */
+    public static final long DEFAULT_EXPIRATION = 1;
+    /**
+     * Default expiration time unit.
+     */
+    public static final TimeUnit DEFAULT_EXPIRATION_UNIT = TimeUnit.HOURS;
+    private final Cache<String, Entry> cache;
+
+    /**
+     * Builds a registry with default size and expiration.
+     */
+    public ProgramRegistry() {
+        this(DEFAULT_SIZE, DEFAULT_EXPIRATION, DEFAULT_EXPIRATION_UNIT);
+    }
+
+    /**
+     * @param maximumSize
+     *            the maximum number of sources to retain. Least recently used
+     *            sources are evicted first
+     * @param expireAfterAccess
+     *            how long a source is retained since its last access
+     * @param unit
+     *            the {@link TimeUnit} of expireAfterAccess
+     */
+    public ProgramRegistry(final long maximumSize, final long expireAfterAccess, final TimeUnit unit) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccess, unit)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * @param source
+     *            the program source, or the name of a Protelis module
+     * @return a new instance of the {@link ProtelisProgram}, or an empty
+     *         {@link Optional} if source is not a valid program
+     */
+    public Optional<ProtelisProgram> get(final String source) {
+        final Entry entry = load(source);
+        return entry.image == null ? Optional.empty() : Optional.of(entry.newInstance());
+    }
+
+    /**
+     * @param source
+     *            the program source, or the name of a Protelis module
+     * @return a new instance of the {@link ProtelisProgram}
+     * @throws IllegalArgumentException
+     *             if source is not a valid program
+     */
+    public ProtelisProgram parse(final String source) {
+        final Entry entry = load(source);
+        if (entry.image == null) {
+            throw new IllegalArgumentException("Could not parse a Protelis program from " + source, entry.failure);
+        }
+        return entry.newInstance();
+    }
+
+    /**
+     * @param source
+     *            the program source, or the name of a Protelis module
+     * @return true if source is a valid program
+     */
+    public boolean isValid(final String source) {
+        return load(source).image != null;
+    }
+
+    /**
+     * @param source
+     *            the program source, or the name of a Protelis module
+     * @return the {@link CodePathDictionary} shared by all the nodes running
+     *         this program
+     */
+    public CodePathDictionary getDictionary(final String source) {
+        return load(source).dictionary;
+    }
+
+    /**
+     * @param source
+     *            the program source, or the name of a Protelis module
+     * @return the {@link ProgramAnalysis} of the program
+     */
+    public ProgramAnalysis getAnalysis(final String source) {
+        return load(source).getAnalysis(source);
+    }
+
+    /**
+     * @return hit, miss and load time statistics
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return the number of sources currently cached
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Discards every cached source, dictionary and analysis. Programs already loaded
+     * keep working with their own.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    private Entry load(final String source) {
+        Objects.requireNonNull(source);
+        try {
+            return cache.get(source, () -> {
+                final ProtelisProgram program;
+                try {
+                    program = parseNow(source);
+                } catch (final RuntimeException e) {
+                    return new Entry(null, e);
+                }
+                return new Entry(serialize(program), null);
+            });
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ProtelisProgram parseNow(final String source) {
+        /*
+         * The Protelis loader relies on a shared resource set
+         */
+        synchronized (ProtelisLoader.class) {
+            return ProtelisLoader.parse(source);
+        }
+    }
+
+    private static byte[] serialize(final ProtelisProgram program) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(program);
+        } catch (final IOException e) {
+            throw new IllegalStateException("Could not copy " + program.getName(), e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + cache.stats();
+    }
+
+    /*
+     * The image of a program as it was parsed, or the reason why parsing
+     * failed. Images are never modified, and can be copied concurrently. The
+     * analysis is only computed when first requested.
+     */
+    private static final class Entry {
+        private final byte[] image;
+        private final RuntimeException failure;
+        private final CodePathDictionary dictionary = new CodePathDictionary();
+        private volatile ProgramAnalysis analysis;
+
+        Entry(final byte[] image, final RuntimeException failure) {
+            this.image = image;
+            this.failure = failure;
+        }
+
+        ProgramAnalysis getAnalysis(final String source) {
+            ProgramAnalysis res = analysis;
+            if (res == null) {
+                /*
+                 * Analyses are deterministic: racing threads compute equal ones
+                 */
+                res = ProgramAnalysis.of(source);
+                analysis = res;
+            }
+            return res;
+        }
+
+        ProtelisProgram newInstance() {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(image))) {
+                return (ProtelisProgram) in.readObject();
+            } catch (final IOException | ClassNotFoundException e) {
+                throw new IllegalStateException("Could not copy a cached program", e);
+            }
+        }
+    }
+
+}
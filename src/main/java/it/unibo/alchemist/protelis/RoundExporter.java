@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+
+/**
+ * Streams the values computed by Protelis programs, as (time, node, value)
+ * records, into a memory-mapped file. Programs hand their records over to a
+ * bounded queue. When the queue is full, a blocking exporter makes them wait
+ * for the writer, while a lossy one drops the records, counts them, and
+ * fails when closed. A background thread writes them in blocks, each block
+ * storing one column per field. Numbers and booleans are stored as
+ * primitives, any other value as a code in a dictionary of strings, whose
+ * new entries are written at the beginning of each block. The dictionary is
+ * reset, and the reset recorded in the block, once it holds
+ * {@link #DICTIONARY} strings, so that exporting ever new strings takes
+ * bounded memory.
+ *
+ * If the writer stops because of a failure, any further export throws.
+ *
+ * Files are read back by {@link RoundReader}.
+ */
+public final class RoundExporter implements Closeable {
+
+    /**
+     * Default capacity of the queue.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    /**
+     * Maximum number of records per block.
+     */
+    public static final int BLOCK = 1 << 12;
+    /**
+     * Number of strings in the dictionary beyond which it is reset.
+     */
+    public static final int DICTIONARY = 1 << 14;
+    static final int MAGIC = 0x50524f45;
+    static final int VERSION = 2;
+    static final byte NULL = 0;
+    static final byte NUMBER = 1;
+    static final byte TRUE = 2;
+    static final byte FALSE = 3;
+    static final byte STRING = 4;
+    private static final long POLL_MILLIS = 100;
+    private static final Record END = new Record(0, 0, null);
+    private final BlockingQueue<Record> queue;
+    private final MappedFileWriter file;
+    private final Thread writer;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final boolean blocking;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    /**
+     * Builds a blocking exporter.
+     * 
+     * @param path
+     *            the file to write. It is created, or overwritten
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public RoundExporter(final Path path) throws IOException {
+        this(path, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Builds a blocking exporter.
+     * 
+     * @param path
+     *            the file to write. It is created, or overwritten
+     * @param capacity
+     *            how many records can wait to be written
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public RoundExporter(final Path path, final int capacity) throws IOException {
+        this(path, capacity, true);
+    }
+
+    /**
+     * @param path
+     *            the file to write. It is created, or overwritten
+     * @param capacity
+     *            how many records can wait to be written
+     * @param blocking
+     *            true if exporting to a full queue waits for the writer,
+     *            false if it drops the record
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public RoundExporter(final Path path, final int capacity, final boolean blocking) throws IOException {
+        this.blocking = blocking;
+        queue = new ArrayBlockingQueue<>(capacity);
+        file = new MappedFileWriter(path);
+        file.putInt(MAGIC);
+        file.putInt(VERSION);
+        writer = new Thread(this::writeLoop, getClass().getSimpleName() + "-" + path.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Makes all the Protelis programs of an environment export through this
+     * exporter.
+     * 
+     * @param env
+     *            the {@link Environment}
+     * @return the number of programs attached
+     */
+    public int attachTo(final Environment<Object> env) {
+        int attached = 0;
+        for (final Node<Object> node : env.getNodes()) {
+            if (node instanceof ProtelisNode) {
+                for (final RunProtelisProgram program : ((ProtelisNode) node).getPrograms()) {
+                    program.setExporter(this);
+                    attached++;
+                }
+            }
+        }
+        return attached;
+    }
+
+    /**
+     * Queues a record. If the queue is full, a blocking exporter waits for
+     * the writer, a lossy one drops the record. Safe to call from multiple
+     * threads.
+     * 
+     * @param time
+     *            the simulated time
+     * @param node
+     *            the node id
+     * @param value
+     *            the value
+     * @return false if the record was dropped, because the queue is full or
+     *         the thread was interrupted while waiting
+     * @throws IllegalStateException
+     *             if this exporter is closed, or its writer stopped because
+     *             of a failure
+     */
+    public boolean export(final double time, final int node, final Object value) {
+        if (closed) {
+            throw new IllegalStateException(this + " is closed");
+        }
+        checkWriter();
+        final Record record = new Record(time, node, value);
+        if (queue.offer(record) || blocking && await(record)) {
+            return true;
+        }
+        checkWriter();
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /*
+     * Records queued after the writer stopped would never be written
+     */
+    private void checkWriter() {
+        if (!writer.isAlive()) {
+            throw new IllegalStateException(this + " stopped writing", failure);
+        }
+    }
+
+    private boolean await(final Record record) {
+        try {
+            while (writer.isAlive()) {
+                if (queue.offer(record, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * @return true if exporting to a full queue waits for the writer
+     */
+    public boolean isBlocking() {
+        return blocking;
+    }
+
+    /**
+     * @return the number of records dropped so far
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of records written so far
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    private void writeLoop() {
+        final List<Record> block = new ArrayList<>(BLOCK);
+        try {
+            boolean running = true;
+            /*
+             * Records queued by programs racing with close are written too
+             */
+            while (running || !queue.isEmpty()) {
+                final Record first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    block.add(first);
+                    queue.drainTo(block, BLOCK - block.size());
+                    if (block.remove(END)) {
+                        running = false;
+                    }
+                    if (!block.isEmpty()) {
+                        writeBlock(block);
+                        block.clear();
+                    }
+                }
+            }
+        } catch (final InterruptedException e) {
+            failure = new InterruptedIOException("Interrupted while exporting");
+        } catch (final IOException e) {
+            failure = e;
+        } catch (final RuntimeException e) {
+            failure = new IOException("The writer failed", e);
+        }
+    }
+
+    private void writeBlock(final List<Record> block) throws IOException {
+        final boolean reset = dictionary.size() >= DICTIONARY;
+        if (reset) {
+            dictionary.clear();
+        }
+        final List<String> added = new ArrayList<>();
+        for (final Record record : block) {
+            if (typeOf(record.value) == STRING) {
+                final String s = record.value.toString();
+                if (!dictionary.containsKey(s)) {
+                    dictionary.put(s, dictionary.size());
+                    added.add(s);
+                }
+            }
+        }
+        file.putInt(block.size());
+        file.putByte((byte) (reset ? 1 : 0));
+        file.putVarInt(added.size());
+        for (final String s : added) {
+            file.putString(s);
+        }
+        for (final Record record : block) {
+            file.putDouble(record.time);
+        }
+        for (final Record record : block) {
+            file.putInt(record.node);
+        }
+        for (final Record record : block) {
+            file.putByte(typeOf(record.value));
+        }
+        for (final Record record : block) {
+            final byte type = typeOf(record.value);
+            if (type == NUMBER) {
+                file.putDouble(((Number) record.value).doubleValue());
+            } else if (type == STRING) {
+                file.putVarInt(dictionary.get(record.value.toString()));
+            }
+        }
+        written.addAndGet(block.size());
+    }
+
+    private static byte typeOf(final Object value) {
+        if (value == null) {
+            return NULL;
+        }
+        if (value instanceof Number) {
+            return NUMBER;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value ? TRUE : FALSE;
+        }
+        return STRING;
+    }
+
+    /**
+     * Writes the queued records and closes the file. The records written
+     * stay readable even if this method fails.
+     * 
+     * @throws IOException
+     *             if some record could not be written, or was dropped
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            while (writer.isAlive() && !queue.offer(END, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
+            writer.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the exporter");
+        } finally {
+            file.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (dropped.get() > 0) {
+            throw new IOException(dropped + " records were dropped, " + written + " were written");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[written=" + written + ", dropped=" + dropped + "]";
+    }
+
+    private static final class Record {
+        private final double time;
+        private final int node;
+        private final Object value;
+
+        Record(final double time, final int node, final Object value) {
+            this.time = time;
+            this.node = node;
+            this.value = value;
+        }
+    }
+
+}
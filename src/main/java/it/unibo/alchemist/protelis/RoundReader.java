@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams back the records written by a {@link RoundExporter}, one block at a
+ * time. The reader is a cursor: {@link #next()} moves to the next record,
+ * whose fields are then available through the getters, without allocating
+ * anything for numeric and boolean values.
+ */
+public final class RoundReader implements Closeable {
+
+    private final MappedFileReader file;
+    private final List<String> dictionary = new ArrayList<>();
+    private double[] times = new double[0];
+    private int[] nodes = new int[0];
+    private byte[] types = new byte[0];
+    private double[] numbers = new double[0];
+    private int[] codes = new int[0];
+    private int size;
+    private int current = -1;
+
+    /**
+     * @param path
+     *            the file written by a {@link RoundExporter}
+     * @throws IOException
+     *             if the file can not be read, or was not written by a
+     *             {@link RoundExporter}
+     */
+    public RoundReader(final Path path) throws IOException {
+        file = new MappedFileReader(path);
+        if (file.size() < 2 * Integer.BYTES || file.getInt() != RoundExporter.MAGIC) {
+            file.close();
+            throw new IOException(path + " was not written by a " + RoundExporter.class.getSimpleName());
+        }
+        final int version = file.getInt();
+        if (version != RoundExporter.VERSION) {
+            file.close();
+            throw new IOException("Unsupported export version " + version);
+        }
+    }
+
+    /**
+     * Moves to the next record.
+     * 
+     * @return false if there are no more records
+     * @throws IOException
+     *             if the file is corrupted
+     */
+    public boolean next() throws IOException {
+        current++;
+        if (current >= size) {
+            if (file.isAtEnd()) {
+                return false;
+            }
+            readBlock();
+        }
+        return true;
+    }
+
+    private void readBlock() throws IOException {
+        size = file.getInt();
+        current = 0;
+        if (file.getByte() != 0) {
+            dictionary.clear();
+        }
+        final int added = file.getVarInt();
+        for (int i = 0; i < added; i++) {
+            dictionary.add(file.getString());
+        }
+        if (times.length < size) {
+            times = new double[size];
+            nodes = new int[size];
+            types = new byte[size];
+            numbers = new double[size];
+            codes = new int[size];
+        }
+        for (int i = 0; i < size; i++) {
+            times[i] = file.getDouble();
+        }
+        for (int i = 0; i < size; i++) {
+            nodes[i] = file.getInt();
+        }
+        for (int i = 0; i < size; i++) {
+            types[i] = file.getByte();
+        }
+        for (int i = 0; i < size; i++) {
+            if (types[i] == RoundExporter.NUMBER) {
+                numbers[i] = file.getDouble();
+            } else if (types[i] == RoundExporter.STRING) {
+                codes[i] = file.getVarInt();
+            }
+        }
+    }
+
+    /**
+     * @return the simulated time of the current record
+     */
+    public double getTime() {
+        return times[current];
+    }
+
+    /**
+     * @return the node id of the current record
+     */
+    public int getNode() {
+        return nodes[current];
+    }
+
+    /**
+     * @return true if the value of the current record is a number or a
+     *         boolean
+     */
+    public boolean isNumeric() {
+        final byte type = types[current];
+        return type == RoundExporter.NUMBER || type == RoundExporter.TRUE || type == RoundExporter.FALSE;
+    }
+
+    /**
+     * @return the value of the current record as a number: booleans are
+     *         converted to 1 and 0, other values to NaN
+     */
+    public double getNumber() {
+        switch (types[current]) {
+        case RoundExporter.NUMBER:
+            return numbers[current];
+        case RoundExporter.TRUE:
+            return 1;
+        case RoundExporter.FALSE:
+            return 0;
+        default:
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @return the value of the current record: a {@link Double}, a
+     *         {@link Boolean}, a {@link String} for any other value that was
+     *         exported, or null
+     */
+    public Object getValue() {
+        switch (types[current]) {
+        case RoundExporter.NUMBER:
+            return numbers[current];
+        case RoundExporter.TRUE:
+            return Boolean.TRUE;
+        case RoundExporter.FALSE:
+            return Boolean.FALSE;
+        case RoundExporter.STRING:
+            return dictionary.get(codes[current]);
+        default:
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.function.DoubleSupplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.IMapEnvironment;
+import it.unibo.alchemist.model.interfaces.Position;
+
+/**
+ * Cache of routing distances, shared by all the devices of an
+ * {@link IMapEnvironment}. Origins and destinations are snapped to a grid:
+ * routes starting and ending in the same cells are computed once, and a
+ * device needs a new route only when it moves into another cell. The cached
+ * distances are thus approximated by at most the size of a cell at each end.
+ *
+ * Caching is disabled by default, and is enabled per environment with
+ * {@link #enable(IMapEnvironment, double, long)}.
+ */
+public final class RouteCache {
+
+    /**
+     * Default maximum number of cached routes.
+     */
+    public static final long DEFAULT_SIZE = 100_000;
+    private static final Cache<Environment<?>, RouteCache> CACHES = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+    private final double resolution;
+    private final Cache<Key, Double> distances;
+
+    private RouteCache(final double resolution, final long maximumSize) {
+        if (!(resolution > 0)) {
+            throw new IllegalArgumentException("Invalid resolution: " + resolution);
+        }
+        this.resolution = resolution;
+        distances = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Enables route caching for an environment, replacing any previous cache.
+     * 
+     * @param env
+     *            the environment
+     * @param resolution
+     *            the size of the grid cells, in the units of the environment
+     *            coordinates. Devices moving less than this distance reuse
+     *            their routes
+     * @param maximumSize
+     *            the maximum number of routes to retain. Least recently used
+     *            routes are evicted first
+     * @return the {@link RouteCache}
+     */
+    public static RouteCache enable(final IMapEnvironment<?> env, final double resolution, final long maximumSize) {
+        final RouteCache res = new RouteCache(resolution, maximumSize);
+        CACHES.put(Objects.requireNonNull(env), res);
+        return res;
+    }
+
+    /**
+     * Disables route caching for an environment.
+     * 
+     * @param env
+     *            the environment
+     */
+    public static void disable(final Environment<?> env) {
+        CACHES.invalidate(env);
+    }
+
+    /**
+     * @param env
+     *            the environment
+     * @return the {@link RouteCache} of env, if caching is enabled
+     */
+    public static Optional<RouteCache> of(final Environment<?> env) {
+        return Optional.ofNullable(CACHES.getIfPresent(env));
+    }
+
+    /**
+     * @param from
+     *            the origin
+     * @param to
+     *            the destination
+     * @param route
+     *            computes the distance, in case it is not cached
+     * @return the routing distance, as computed for some origin and
+     *         destination in the same cells as from and to
+     */
+    public double distance(final Position from, final Position to, final DoubleSupplier route) {
+        try {
+            return distances.get(new Key(snap(from), snap(to)), route::getAsDouble);
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long[] snap(final Position position) {
+        final double[] coordinates = position.getCartesianCoordinates();
+        final long[] res = new long[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            res[i] = (long) Math.floor(coordinates[i] / resolution);
+        }
+        return res;
+    }
+
+    /**
+     * @return the size of the grid cells
+     */
+    public double getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @return hit and miss statistics
+     */
+    public CacheStats getStats() {
+        return distances.stats();
+    }
+
+    /**
+     * Discards every cached route, e.g. because the map changed.
+     */
+    public void invalidateAll() {
+        distances.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + distances.stats();
+    }
+
+    private static final class Key {
+        private final long[] from;
+        private final long[] to;
+        private final int hash;
+
+        Key(final long[] from, final long[] to) {
+            this.from = from;
+            this.to = to;
+            hash = 31 * Arrays.hashCode(from) + Arrays.hashCode(to);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return hash == other.hash && Arrays.equals(from, other.from) && Arrays.equals(to, other.to);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import org.apache.commons.math3.random.BitsStreamGenerator;
+
+/**
+ * The SplitMix64 generator: a 64 bit counter scrambled by a mixing function.
+ * It is very fast, has no shared state, and independent streams can be
+ * derived from a master seed and any sequence of keys (e.g. a node id and a
+ * program) with {@link #derive(long, long...)}. Not thread-safe: each thread
+ * or device should own its stream.
+ */
+public final class SplitMix64 extends BitsStreamGenerator {
+
+    private static final long serialVersionUID = 1L;
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private static final long MIX_1 = 0xbf58476d1ce4e5b9L;
+    private static final long MIX_2 = 0x94d049bb133111ebL;
+    private static final int SHIFT_1 = 30;
+    private static final int SHIFT_2 = 27;
+    private static final int SHIFT_3 = 31;
+    private static final int LONG_BITS = 64;
+    private static final int INT_BITS = 32;
+    private static final int DOUBLE_SHIFT = 11;
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+    private long state;
+
+    /**
+     * @param seed
+     *            the seed
+     */
+    public SplitMix64(final long seed) {
+        super();
+        state = seed;
+    }
+
+    /**
+     * Derives a stream whose sequence depends only on the master seed and on
+     * the keys. Streams derived with different keys are statistically
+     * independent.
+     * 
+     * @param masterSeed
+     *            the master seed
+     * @param keys
+     *            the keys identifying the stream
+     * @return a new {@link SplitMix64}
+     */
+    public static SplitMix64 derive(final long masterSeed, final long... keys) {
+        long seed = mix(masterSeed);
+        for (final long key : keys) {
+            seed = mix(seed + GOLDEN_GAMMA * (mix(key) | 1));
+        }
+        return new SplitMix64(seed);
+    }
+
+    /**
+     * @return a new stream, independent of this one, whose seed is drawn from
+     *         this stream
+     */
+    public SplitMix64 split() {
+        return new SplitMix64(mix(nextLong()));
+    }
+
+    /**
+     * @return the state of this stream: {@link #setSeed(long)} with it
+     *         continues the same sequence
+     */
+    public long getState() {
+        return state;
+    }
+
+    @Override
+    public void setSeed(final int seed) {
+        setSeed((long) seed);
+    }
+
+    @Override
+    public void setSeed(final int[] seed) {
+        long combined = 0;
+        for (final int s : seed) {
+            combined = mix(combined + GOLDEN_GAMMA + s);
+        }
+        setSeed(combined);
+    }
+
+    @Override
+    public void setSeed(final long seed) {
+        state = seed;
+        clear();
+    }
+
+    @Override
+    protected int next(final int bits) {
+        return (int) (nextLong() >>> (LONG_BITS - bits));
+    }
+
+    @Override
+    public int nextInt() {
+        return (int) (nextLong() >>> INT_BITS);
+    }
+
+    @Override
+    public long nextLong() {
+        state += GOLDEN_GAMMA;
+        return mix(state);
+    }
+
+    @Override
+    public double nextDouble() {
+        return (nextLong() >>> DOUBLE_SHIFT) * DOUBLE_UNIT;
+    }
+
+    private static long mix(final long value) {
+        long z = (value ^ (value >>> SHIFT_1)) * MIX_1;
+        z = (z ^ (z >>> SHIFT_2)) * MIX_2;
+        return z ^ (z >>> SHIFT_3);
+    }
+
+}
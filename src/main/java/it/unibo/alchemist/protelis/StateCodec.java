@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+import org.protelis.lang.datatype.DatatypeFactory;
+import org.protelis.lang.datatype.Tuple;
+import org.protelis.vm.util.CodePath;
+
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+
+/**
+ * Binary encoder and decoder for the states exchanged by devices. Keys are
+ * written as their code in a {@link CodePathDictionary}, so the two ends must
+ * share the dictionary. Doubles, integers, longs, booleans, strings,
+ * {@link Tuple}s and {@link ProtelisNode} device IDs have a compact
+ * representation; other values fall back to Java serialization.
+ *
+ * A codec can be used for decoding by any thread, but for encoding only by
+ * one thread at a time, as it reuses the same {@link ByteBuffer}.
+ */
+public final class StateCodec implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final byte NULL = 0;
+    private static final byte DOUBLE = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte STRING = 6;
+    private static final byte TUPLE = 7;
+    private static final byte DEVICE = 8;
+    private static final byte SERIALIZED = 9;
+    private static final int VARINT_SHIFT = 7;
+    private static final int VARINT_MASK = 0x7F;
+    private static final int VARINT_MORE = 0x80;
+    private final CodePathDictionary dictionary;
+    private final Environment<Object> env;
+    private transient ByteBuffer buffer;
+
+    /**
+     * @param dictionary
+     *            the {@link CodePathDictionary} of the program
+     * @param env
+     *            the environment, used to resolve device IDs
+     */
+    public StateCodec(final CodePathDictionary dictionary, final Environment<Object> env) {
+        this.dictionary = dictionary;
+        this.env = env;
+    }
+
+    /**
+     * @param state
+     *            the state
+     * @return the encoded state
+     */
+    public byte[] encode(final Map<CodePath, Object> state) {
+        return encode(state, Collections.emptySet());
+    }
+
+    /**
+     * @param changed
+     *            the entries to add or replace
+     * @param removed
+     *            the keys to remove
+     * @return the encoded changes
+     */
+    public byte[] encode(final Map<CodePath, Object> changed, final Collection<CodePath> removed) {
+        reset();
+        writeVarInt(changed.size());
+        for (final Map.Entry<CodePath, Object> entry : changed.entrySet()) {
+            writeVarInt(dictionary.encode(entry.getKey()));
+            writeValue(entry.getValue());
+        }
+        writeVarInt(removed.size());
+        for (final CodePath key : removed) {
+            writeVarInt(dictionary.encode(key));
+        }
+        return toByteArray();
+    }
+
+    /**
+     * @param value
+     *            a single value
+     * @return the encoded value
+     */
+    byte[] encodeValue(final Object value) {
+        reset();
+        writeValue(value);
+        return toByteArray();
+    }
+
+    /**
+     * @param bytes
+     *            a value encoded by {@link #encodeValue(Object)}
+     * @return the decoded value
+     */
+    Object decodeValue(final byte[] bytes) {
+        return readValue(ByteBuffer.wrap(bytes));
+    }
+
+    private void reset() {
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        }
+        buffer.clear();
+    }
+
+    private byte[] toByteArray() {
+        final byte[] res = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(res);
+        return res;
+    }
+
+    /**
+     * @param bytes
+     *            the encoded changes
+     * @param base
+     *            the state to apply the changes to. It is not modified
+     * @return a new state, with the changes applied
+     */
+    public Map<CodePath, Object> decode(final byte[] bytes, final Map<CodePath, Object> base) {
+        return decode(bytes, base, dictionary::decode);
+    }
+
+    /**
+     * @param bytes
+     *            the encoded changes
+     * @param base
+     *            the state to apply the changes to. It is not modified
+     * @param paths
+     *            translates the codes found in bytes into {@link CodePath}s,
+     *            for states encoded with another dictionary
+     * @return a new state, with the changes applied
+     */
+    Map<CodePath, Object> decode(final byte[] bytes, final Map<CodePath, Object> base, final IntFunction<CodePath> paths) {
+        final ByteBuffer in = ByteBuffer.wrap(bytes);
+        final int changed = readVarInt(in);
+        final Map<CodePath, Object> res = new HashMap<>((base.size() + changed) * 2);
+        res.putAll(base);
+        for (int i = 0; i < changed; i++) {
+            final CodePath key = paths.apply(readVarInt(in));
+            res.put(key, readValue(in));
+        }
+        final int removed = readVarInt(in);
+        for (int i = 0; i < removed; i++) {
+            res.remove(paths.apply(readVarInt(in)));
+        }
+        return res;
+    }
+
+    private void ensure(final int bytes) {
+        if (buffer.remaining() < bytes) {
+            final ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    private void writeVarInt(final int value) {
+        ensure(Integer.BYTES + 1);
+        int v = value;
+        while ((v & ~VARINT_MASK) != 0) {
+            buffer.put((byte) (v & VARINT_MASK | VARINT_MORE));
+            v >>>= VARINT_SHIFT;
+        }
+        buffer.put((byte) v);
+    }
+
+    private static int readVarInt(final ByteBuffer in) {
+        int res = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            res |= (b & VARINT_MASK) << shift;
+            shift += VARINT_SHIFT;
+        } while ((b & VARINT_MORE) != 0);
+        return res;
+    }
+
+    private void writeBytes(final byte type, final byte[] bytes) {
+        ensure(1);
+        buffer.put(type);
+        writeVarInt(bytes.length);
+        ensure(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] readBytes(final ByteBuffer in) {
+        final byte[] res = new byte[readVarInt(in)];
+        in.get(res);
+        return res;
+    }
+
+    private void writeValue(final Object value) {
+        ensure(1 + Long.BYTES);
+        if (value == null) {
+            buffer.put(NULL);
+        } else if (value instanceof Double) {
+            buffer.put(DOUBLE).putDouble((Double) value);
+        } else if (value instanceof Integer) {
+            buffer.put(INT).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            buffer.put(LONG).putLong((Long) value);
+        } else if (value instanceof Boolean) {
+            buffer.put((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof String) {
+            writeBytes(STRING, ((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof Tuple) {
+            final Tuple tuple = (Tuple) value;
+            buffer.put(TUPLE);
+            writeVarInt(tuple.size());
+            for (int i = 0; i < tuple.size(); i++) {
+                writeValue(tuple.get(i));
+            }
+        } else if (value instanceof ProtelisNode) {
+            buffer.put(DEVICE).putInt(((ProtelisNode) value).getId());
+        } else {
+            writeBytes(SERIALIZED, serialize(value));
+        }
+    }
+
+    private Object readValue(final ByteBuffer in) {
+        final byte type = in.get();
+        switch (type) {
+        case NULL: return null;
+        case DOUBLE: return in.getDouble();
+        case INT: return in.getInt();
+        case LONG: return in.getLong();
+        case TRUE: return true;
+        case FALSE: return false;
+        case STRING: return new String(readBytes(in), StandardCharsets.UTF_8);
+        case TUPLE: return readTuple(in);
+        case DEVICE: return env.getNodeByID(in.getInt());
+        case SERIALIZED: return deserialize(readBytes(in));
+        default: throw new IllegalStateException("Unknown type " + type);
+        }
+    }
+
+    private Tuple readTuple(final ByteBuffer in) {
+        final Object[] elements = new Object[readVarInt(in)];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = readValue(in);
+        }
+        return DatatypeFactory.createTuple(elements);
+    }
+
+    private static byte[] serialize(final Object value) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(value);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Can not encode " + value, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(final byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        } catch (final IOException | ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.protelis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.actions.SendToNeighbor;
+import it.unibo.alchemist.model.interfaces.Action;
+import it.unibo.alchemist.model.interfaces.Context;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+
+/**
+ * Bulk-synchronous execution of all the Protelis programs of an
+ * {@link Environment}, bypassing the event queue: each {@link #step()} runs
+ * every {@link RunProtelisProgram}, then delivers every {@link SendToNeighbor}.
+ *
+ * Both actions have a {@link Context#LOCAL} context: during the first phase a
+ * program only reads its own node and mailbox, and evaluates its own copy of
+ * the parsed code; during the second phase a sender only posts into its
+ * neighbors' mailboxes. Hence, each phase can run on a {@link ForkJoinPool},
+ * and the result is the same as running it sequentially, or as executing the
+ * same actions through the event queue in the same order. Programs that draw
+ * random numbers from the shared simulation
+ * {@link org.apache.commons.math3.random.RandomGenerator} are the exception,
+ * as the order of the draws depends on scheduling, unless each program is
+ * given its own stream with {@link #setRandomStreams(long)}. In parallel
+ * mode, draws from the shared generator are synchronized, and mailboxes
+ * accept concurrent senders (see
+ * {@link RunProtelisProgram#setConcurrentExecution(boolean)}).
+ *
+ * Other reactions of the nodes are not executed, and the time seen by the
+ * programs is that of their reactions.
+ */
+public final class SynchronousRounds {
+
+    private final List<RunProtelisProgram> programs = new ArrayList<>();
+    private final List<SendToNeighbor> sends = new ArrayList<>();
+    private final List<Reaction<Object>> programOwners = new ArrayList<>();
+    private final List<Reaction<Object>> sendOwners = new ArrayList<>();
+    private final ForkJoinPool pool;
+    private long rounds;
+
+    /**
+     * Builds a sequential executor.
+     *
+     * @param env
+     *            the {@link Environment}
+     */
+    public SynchronousRounds(final Environment<Object> env) {
+        this(env, null);
+    }
+
+    /**
+     * @param env
+     *            the {@link Environment}
+     * @param pool
+     *            the {@link ForkJoinPool} where the phases are executed, or
+     *            null for a sequential execution
+     * @throws IllegalStateException
+     *             if some Protelis action is not local
+     */
+    public SynchronousRounds(final Environment<Object> env, final ForkJoinPool pool) {
+        this(reactionsOf(env), pool);
+        if (pool != null) {
+            enableConcurrency(env);
+        }
+    }
+
+    /**
+     * Builds an executor for a subset of the reactions of an environment. In
+     * parallel mode, the programs that receive from these reactions without
+     * being part of them must be prepared with
+     * {@link #enableConcurrency(Environment)}.
+     * 
+     * @param reactions
+     *            the {@link Reaction}s whose Protelis actions are executed,
+     *            in the order they should run
+     * @param pool
+     *            the {@link ForkJoinPool} where the phases are executed, or
+     *            null for a sequential execution
+     * @throws IllegalStateException
+     *             if some Protelis action is not local
+     */
+    public SynchronousRounds(final Collection<? extends Reaction<Object>> reactions, final ForkJoinPool pool) {
+        this.pool = pool;
+        for (final Reaction<Object> reaction : reactions) {
+            for (final Action<Object> action : reaction.getActions()) {
+                if (action instanceof RunProtelisProgram) {
+                    programs.add(requireLocal((RunProtelisProgram) action));
+                    programOwners.add(reaction);
+                } else if (action instanceof SendToNeighbor) {
+                    sends.add(requireLocal((SendToNeighbor) action));
+                    sendOwners.add(reaction);
+                }
+            }
+        }
+        if (pool != null) {
+            programs.forEach(p -> p.setConcurrentExecution(true));
+        }
+    }
+
+    /**
+     * Prepares all the programs of an environment for the parallel execution
+     * of some of them. See
+     * {@link RunProtelisProgram#setConcurrentExecution(boolean)}.
+     * 
+     * @param env
+     *            the {@link Environment}
+     */
+    public static void enableConcurrency(final Environment<Object> env) {
+        for (final Reaction<Object> reaction : reactionsOf(env)) {
+            for (final Action<Object> action : reaction.getActions()) {
+                if (action instanceof RunProtelisProgram) {
+                    ((RunProtelisProgram) action).setConcurrentExecution(true);
+                }
+            }
+        }
+    }
+
+    private static List<Reaction<Object>> reactionsOf(final Environment<Object> env) {
+        final List<Node<Object>> nodes = new ArrayList<>(env.getNodes());
+        Collections.sort(nodes, Comparator.comparingInt(Node::getId));
+        final List<Reaction<Object>> reactions = new ArrayList<>();
+        for (final Node<Object> node : nodes) {
+            reactions.addAll(node.getReactions());
+        }
+        return reactions;
+    }
+
+    private static <A extends Action<?>> A requireLocal(final A action) {
+        if (action.getContext() != Context.LOCAL) {
+            throw new IllegalStateException(action + " has a " + action.getContext()
+                    + " context, synchronous rounds require " + Context.LOCAL);
+        }
+        return action;
+    }
+
+    /**
+     * Runs a round: all the programs compute, then all the messages are
+     * delivered. The actions of the reactions whose conditions do not hold
+     * at the beginning of a phase are skipped.
+     */
+    public void step() {
+        runPhase(executable(programs, programOwners), RunProtelisProgram::execute);
+        runPhase(executable(sends, sendOwners), SendToNeighbor::execute);
+        rounds++;
+    }
+
+    /**
+     * @param count
+     *            the number of rounds to run
+     */
+    public void step(final long count) {
+        for (long i = 0; i < count; i++) {
+            step();
+        }
+    }
+
+    private static <A> List<A> executable(final List<A> actions, final List<Reaction<Object>> owners) {
+        /*
+         * Copied only if some action is skipped
+         */
+        List<A> res = actions;
+        for (int i = 0; i < actions.size(); i++) {
+            if (!owners.get(i).canExecute()) {
+                if (res == actions) {
+                    res = new ArrayList<>(actions.subList(0, i));
+                }
+            } else if (res != actions) {
+                res.add(actions.get(i));
+            }
+        }
+        return res;
+    }
+
+    private <A> void runPhase(final List<A> actions, final Consumer<A> phase) {
+        if (pool == null) {
+            actions.forEach(phase);
+        } else {
+            pool.submit(() -> actions.parallelStream().forEach(phase)).join();
+        }
+    }
+
+    /**
+     * Gives every program a private random stream, derived from the master
+     * seed. See {@link RunProtelisProgram#setRandomStream(long)}.
+     * 
+     * @param masterSeed
+     *            the master seed
+     */
+    public void setRandomStreams(final long masterSeed) {
+        programs.forEach(p -> p.setRandomStream(masterSeed));
+    }
+
+    /**
+     * @return the number of rounds executed so far
+     */
+    public long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return the programs executed at each round, ordered by node
+     */
+    public List<RunProtelisProgram> getPrograms() {
+        return Collections.unmodifiableList(programs);
+    }
+
+    /**
+     * @return true if phases are executed in parallel
+     */
+    public boolean isParallel() {
+        return pool != null;
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.junit.Test;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.actions.SendToNeighbor;
+import it.unibo.alchemist.model.implementations.conditions.ComputationalRoundComplete;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.implementations.reactions.BatchReaction;
+import it.unibo.alchemist.model.implementations.reactions.ChemicalReaction;
+import it.unibo.alchemist.model.implementations.timedistributions.DiracComb;
+import it.unibo.alchemist.model.implementations.timedistributions.ExponentialTime;
+import it.unibo.alchemist.model.implementations.times.DoubleTime;
+import it.unibo.alchemist.model.interfaces.Action;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.model.interfaces.TimeDistribution;
+import it.unibo.alchemist.protelis.AlchemistNetworkManager;
+import it.unibo.alchemist.protelis.AlignedRounds;
+
+/**
+ * Batches run the programs and the sends of their members, which stay
+ * installed on their nodes.
+ */
+public class TestAlignedRounds {
+
+    private static final String SIMULATION = "nbr02.psim";
+    private static final int ROUNDS = 10;
+    private static final double SLOW_RATE = 0.5;
+    private static final double SLOW_PHASE = 0.25;
+
+    /**
+     * Sends are batched with their programs even if their time distribution
+     * is not periodic, and the programs stay installed.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testGrouping() throws Exception {
+        final Environment<Object> env = TestInSimulator.load(SIMULATION);
+        final Map<Integer, List<RunProtelisProgram>> programs = programs(env);
+        final List<BatchReaction> batches = AlignedRounds.install(env, null);
+        assertFalse(batches.isEmpty());
+        for (final Node<Object> node : env.getNodes()) {
+            for (final Reaction<Object> reaction : node.getReactions()) {
+                assertTrue(reaction instanceof BatchReaction || reaction.getActions().isEmpty());
+            }
+        }
+        int members = 0;
+        for (final BatchReaction batch : batches) {
+            final List<RunProtelisProgram> run = new ArrayList<>();
+            final List<RunProtelisProgram> sent = new ArrayList<>();
+            for (final Reaction<Object> member : batch.getMembers()) {
+                for (final Action<Object> action : member.getActions()) {
+                    if (action instanceof RunProtelisProgram) {
+                        run.add((RunProtelisProgram) action);
+                    } else if (action instanceof SendToNeighbor) {
+                        sent.add(((SendToNeighbor) action).getProtelisProgram());
+                    }
+                }
+            }
+            assertEquals(run, sent);
+            members += run.size();
+        }
+        assertEquals(env.getNodesNumber(), members);
+        assertEquals(programs, programs(env));
+        for (final Node<Object> node : env.getNodes()) {
+            assertTrue(((ProtelisNode) node).getProgramsWithoutSend().isEmpty());
+            assertTrue(((ProtelisNode) node).getProgramsWithoutCompletionCheck().isEmpty());
+        }
+    }
+
+    /**
+     * Running the batches in time order delivers the messages and gives the
+     * same values as running the programs and then the sends of each phase.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testMessagesFlow() throws Exception {
+        final Environment<Object> env = TestInSimulator.load(SIMULATION);
+        final Environment<Object> reference = TestInSimulator.load(SIMULATION);
+        final List<BatchReaction> batches = AlignedRounds.install(env, null);
+        batches.sort(Comparator.comparingDouble(b -> b.getTau().toDouble()));
+        final Map<Double, List<Node<Object>>> phases = new TreeMap<>();
+        for (final Node<Object> node : reference.getNodes()) {
+            for (final Reaction<Object> reaction : node.getReactions()) {
+                if (reaction.getActions().stream().anyMatch(a -> a instanceof RunProtelisProgram)) {
+                    phases.computeIfAbsent(reaction.getTau().toDouble(), k -> new ArrayList<>()).add(node);
+                }
+            }
+        }
+        phases.values().forEach(p -> p.sort(Comparator.comparingInt(Node::getId)));
+        assertEquals(phases.size(), batches.size());
+        for (int i = 0; i < ROUNDS; i++) {
+            for (final BatchReaction batch : batches) {
+                batch.execute();
+            }
+            for (final List<Node<Object>> phase : phases.values()) {
+                run(phase, RunProtelisProgram.class);
+                run(phase, SendToNeighbor.class);
+            }
+            assertEquals(TestProgramInstances.values(reference), TestProgramInstances.values(env));
+        }
+        final Map<Integer, AlchemistNetworkManager> managers = TestProgramInstances.managers(env);
+        for (final Node<Object> node : env.getNodes()) {
+            assertEquals(env.getNeighborhood(node).size(),
+                    managers.get(node.getId()).getNeighborState().size());
+        }
+    }
+
+    /**
+     * A cloned batch runs the clones of the members of its node, which get
+     * installed on the new node.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testClone() throws Exception {
+        final Environment<Object> env = TestInSimulator.load(SIMULATION);
+        final BatchReaction batch = AlignedRounds.install(env, null).get(0);
+        final ProtelisNode node = new ProtelisNode(env);
+        final BatchReaction clone = batch.cloneOnNewNode(node);
+        int local = 0;
+        for (final Reaction<Object> member : batch.getMembers()) {
+            if (member.getNode() == batch.getNode()) {
+                local++;
+            }
+        }
+        assertEquals(local, clone.getMembers().size());
+        clone.getMembers().forEach(m -> assertSame(node, m.getNode()));
+        assertEquals(batch.getRate(), clone.getRate(), 0);
+        node.addReaction(clone);
+        assertEquals(1, node.getPrograms().size());
+    }
+
+    /**
+     * A periodic send with its own schedule is left to the simulator, and a
+     * send that the batch would never reschedule is rejected.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testSendSchedules() throws Exception {
+        final Environment<Object> env = TestInSimulator.load(SIMULATION);
+        final Reaction<Object> slow = replaceSend(env, new DiracComb<>(new DoubleTime(SLOW_PHASE), SLOW_RATE));
+        for (final BatchReaction batch : AlignedRounds.install(env, null)) {
+            assertFalse(batch.getMembers().contains(slow));
+        }
+        assertTrue(slow.getNode().getReactions().contains(slow));
+        final Environment<Object> rejected = TestInSimulator.load(SIMULATION);
+        final int reactions = rejected.getNodes().stream().mapToInt(n -> n.getReactions().size()).sum();
+        replaceSend(rejected, new ExponentialTime<>(SLOW_RATE, new MersenneTwister(0)));
+        try {
+            AlignedRounds.install(rejected, null);
+            fail();
+        } catch (final IllegalStateException e) {
+            assertEquals(reactions, rejected.getNodes().stream().mapToInt(n -> n.getReactions().size()).sum());
+        }
+    }
+
+    private static Reaction<Object> replaceSend(final Environment<Object> env, final TimeDistribution<Object> time) {
+        final ProtelisNode node = (ProtelisNode) env.getNodes().iterator().next();
+        final RunProtelisProgram program = node.getPrograms().get(0);
+        for (final Reaction<Object> reaction : new ArrayList<>(node.getReactions())) {
+            if (reaction.getActions().stream().anyMatch(a -> a instanceof SendToNeighbor)) {
+                node.removeReaction(reaction);
+            }
+        }
+        final Reaction<Object> send = new ChemicalReaction<>(node, time);
+        send.setActions(new ArrayList<>(Collections.singletonList(new SendToNeighbor(node, program))));
+        send.setConditions(new ArrayList<>(Collections.singletonList(new ComputationalRoundComplete(node, program))));
+        node.addReaction(send);
+        return send;
+    }
+
+    private static void run(final List<Node<Object>> nodes, final Class<?> kind) {
+        for (final Node<Object> node : nodes) {
+            for (final Reaction<Object> reaction : node.getReactions()) {
+                for (final Action<Object> action : reaction.getActions()) {
+                    if (kind.isInstance(action)) {
+                        action.execute();
+                    }
+                }
+            }
+        }
+    }
+
+    private static Map<Integer, List<RunProtelisProgram>> programs(final Environment<Object> env) {
+        final Map<Integer, List<RunProtelisProgram>> res = new TreeMap<>();
+        for (final Node<Object> node : env.getNodes()) {
+            res.put(node.getId(), ((ProtelisNode) node).getPrograms());
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.protelis.BatchRunner;
+
+/**
+ * Runs of a batch are independent and reproducible.
+ */
+public class TestBatchRunner {
+
+    private static final String SIMULATION = "nbr02.psim";
+    private static final long[] SEEDS = { 1, 2, 3, 4 };
+    private static final int ROUNDS = 10;
+
+    /**
+     * Seeds run concurrently give, round by round, the same values as when
+     * run alone, and different seeds give different values.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testConcurrentEqualsAlone() throws Exception {
+        final Map<Long, List<Double>> alone = new ConcurrentHashMap<>();
+        for (final long seed : SEEDS) {
+            try (BatchRunner runner = new BatchRunner(1)) {
+                run(runner, new long[] { seed }, alone);
+            }
+        }
+        final Map<Long, List<Double>> concurrent = new ConcurrentHashMap<>();
+        try (BatchRunner runner = new BatchRunner(SEEDS.length)) {
+            run(runner, SEEDS, concurrent);
+        }
+        assertEquals(alone, concurrent);
+        assertNotEquals(alone.get(SEEDS[0]), alone.get(SEEDS[1]));
+    }
+
+    private static void run(final BatchRunner runner, final long[] seeds, final Map<Long, List<Double>> values)
+            throws Exception {
+        final Map<Environment<Object>, Long> seedOf = Collections.synchronizedMap(new IdentityHashMap<>());
+        final LongFunction<Environment<Object>> scenario = seed -> {
+            try {
+                final Environment<Object> env = TestInSimulator.load(SIMULATION);
+                seedOf.put(env, seed);
+                values.put(seed, Collections.synchronizedList(new ArrayList<>()));
+                return env;
+            } catch (final Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+        runner.run(scenario, seeds, ROUNDS, env -> {
+            final double value = BatchRunner.meanProgramValue(env);
+            values.get(seedOf.get(env)).add(value);
+            return value;
+        });
+        for (final long seed : seeds) {
+            assertEquals(ROUNDS, values.get(seed).size());
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.protelis.Checkpoint;
+
+/**
+ * A simulation restored from a checkpoint continues as the one it was taken
+ * from.
+ */
+public class TestCheckpoint {
+
+    private static final String SIMULATION = "nbr02.psim";
+    private static final int BEFORE = 2;
+    private static final int AFTER = 10;
+    private static final long SEED = 7;
+
+    /**
+     * nbr02 draws a random number at every round from the private stream of
+     * each program, and keeps the minimum in a rep: both must be restored for
+     * the restored simulation to compute the same values, round by round, as
+     * the original one.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testContinuation() throws Exception {
+        final Environment<Object> original = TestInSimulator.load(SIMULATION);
+        programs(original).forEach(p -> p.setRandomStream(SEED));
+        for (int i = 0; i < BEFORE; i++) {
+            TestProgramInstances.round(original);
+        }
+        final Path file = Files.createTempFile("alchemist", ".bin");
+        try {
+            Checkpoint.write(original, file);
+            final Environment<Object> restored = TestInSimulator.load(SIMULATION);
+            Checkpoint.restore(restored, file);
+            assertEquals(TestProgramInstances.values(original), TestProgramInstances.values(restored));
+            assertEquals(times(original), times(restored));
+            for (int i = 0; i < AFTER; i++) {
+                TestProgramInstances.round(original);
+                TestProgramInstances.round(restored);
+                assertEquals(TestProgramInstances.values(original), TestProgramInstances.values(restored));
+            }
+            assertEquals(times(original), times(restored));
+            assertEquals(draws(original), draws(restored));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Restoring a simulation into itself changes nothing.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testRestoreInPlace() throws Exception {
+        final Environment<Object> env = TestInSimulator.load(SIMULATION);
+        TestProgramInstances.round(env);
+        final Map<Integer, Object> values = TestProgramInstances.values(env);
+        final Path file = Files.createTempFile("alchemist", ".bin");
+        try {
+            Checkpoint.write(env, file);
+            Checkpoint.restore(env, file);
+            assertEquals(values, TestProgramInstances.values(env));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static Map<Integer, Double> times(final Environment<Object> env) {
+        final Map<Integer, Double> res = new TreeMap<>();
+        for (final Node<Object> node : env.getNodes()) {
+            for (final Reaction<Object> reaction : node.getReactions()) {
+                if (reaction.getActions().stream().anyMatch(a -> a instanceof RunProtelisProgram)) {
+                    res.put(node.getId(), reaction.getTau().toDouble());
+                }
+            }
+        }
+        return res;
+    }
+
+    private static List<Double> draws(final Environment<Object> env) {
+        final List<Double> res = new ArrayList<>();
+        programs(env).forEach(p -> res.add(p.getRandomGenerator().nextDouble()));
+        return res;
+    }
+
+    private static List<RunProtelisProgram> programs(final Environment<Object> env) {
+        final List<RunProtelisProgram> res = new ArrayList<>();
+        for (int id = 0; id < env.getNodesNumber(); id++) {
+            res.addAll(((ProtelisNode) env.getNodeByID(id)).getPrograms());
+        }
+        return res;
+    }
+
+}
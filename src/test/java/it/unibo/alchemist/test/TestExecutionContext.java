@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.math3.random.MersenneTwister;
+import org.junit.Test;
+import org.protelis.lang.datatype.DeviceUID;
+import org.protelis.lang.datatype.Field;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.protelis.AlchemistExecutionContext;
+import it.unibo.alchemist.protelis.AlchemistNetworkManager;
+
+/**
+ * The neighborhood fields of the context span the same devices as the fields
+ * built by nbr.
+ */
+public class TestExecutionContext {
+
+    /**
+     * When only some neighbors sent their state, nbrRange and nbrVector only
+     * include those neighbors, plus the local device, and are built once per
+     * round.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testAlignedDomain() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("nbr02.psim");
+        TestProgramInstances.round(env);
+        TestProgramInstances.round(env, id -> id % 2 == 0);
+        final Map<Integer, AlchemistNetworkManager> managers = TestProgramInstances.managers(env);
+        int checked = 0;
+        for (final Node<Object> node : env.getNodes()) {
+            final Set<Integer> neighbors = new HashSet<>();
+            env.getNeighborhood(node).forEach(n -> neighbors.add(n.getId()));
+            if (neighbors.stream().anyMatch(id -> id % 2 != 0) && neighbors.stream().anyMatch(id -> id % 2 == 0)) {
+                final AlchemistNetworkManager netmgr = managers.get(node.getId());
+                final Set<DeviceUID> expected = new HashSet<>(netmgr.getNeighborState().keySet());
+                expected.forEach(device -> assertEquals(0, ((ProtelisNode) device).getId() % 2));
+                assertFalse(expected.isEmpty());
+                expected.add((ProtelisNode) node);
+                final AlchemistExecutionContext ctx = new AlchemistExecutionContext(
+                        env, (ProtelisNode) node, reaction(node), new MersenneTwister(0), netmgr);
+                final Field range = ctx.nbrRange();
+                assertEquals(expected, domain(range));
+                assertEquals(expected, domain(ctx.nbrVector()));
+                assertEquals(0d, range.getSample((ProtelisNode) node));
+                assertSame(range, ctx.nbrRange());
+                checked++;
+            }
+        }
+        assertTrue(checked > 0);
+    }
+
+    private static Set<DeviceUID> domain(final Field field) {
+        final Set<DeviceUID> res = new HashSet<>();
+        field.nodeIterator().forEach(res::add);
+        assertEquals(field.size(), res.size());
+        return res;
+    }
+
+    private static Reaction<Object> reaction(final Node<Object> node) {
+        for (final Reaction<Object> reaction : node.getReactions()) {
+            if (reaction.getActions().stream().anyMatch(a -> a instanceof RunProtelisProgram)) {
+                return reaction;
+            }
+        }
+        throw new IllegalStateException(node + " runs no program");
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.protelis.IdleRelease;
+
+/**
+ * Programs released while idle resume as if they never were.
+ */
+public class TestIdleRelease {
+
+    private static final String SIMULATION = "nbr02.psim";
+    private static final int ROUNDS = 10;
+
+    /**
+     * nbr02 keeps the minimum seen so far in a rep: releasing every program
+     * after every round must not change the values.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testReleaseAndResume() throws Exception {
+        final Environment<Object> env = TestInSimulator.load(SIMULATION);
+        final Environment<Object> reference = TestInSimulator.load(SIMULATION);
+        forEachProgram(env, p -> p.setIdleRelease(0));
+        /*
+         * Programs that never executed hold nothing to release
+         */
+        assertEquals(0, IdleRelease.sweep(env, Double.POSITIVE_INFINITY));
+        for (int i = 0; i < ROUNDS; i++) {
+            TestProgramInstances.round(env);
+            TestProgramInstances.round(reference);
+            assertEquals(TestProgramInstances.values(reference), TestProgramInstances.values(env));
+            /*
+             * Long after the last execution, every program is released
+             */
+            assertEquals(env.getNodesNumber(), IdleRelease.sweep(env, Double.POSITIVE_INFINITY));
+            forEachProgram(env, p -> assertFalse(p.isLoaded()));
+        }
+    }
+
+    private static void forEachProgram(final Environment<Object> env, final Consumer<RunProtelisProgram> action) {
+        for (final Node<Object> node : env.getNodes()) {
+            ((ProtelisNode) node).getPrograms().forEach(action);
+        }
+    }
+
+}
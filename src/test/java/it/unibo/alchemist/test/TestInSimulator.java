@@ -23,15 +23,10 @@ import it.unibo.alchemist.model.interfaces.Environment;
 import it.unibo.alchemist.model.interfaces.Node;
 
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.concurrent.ExecutionException;
 import java.util.function.Consumer;
 
-import javax.xml.parsers.ParserConfigurationException;
-
 import org.apache.commons.io.Charsets;
 import org.eclipse.emf.common.util.URI;
 import org.eclipse.emf.ecore.resource.Resource;
@@ -41,7 +36,6 @@ import org.eclipse.xtext.resource.XtextResource;
 import org.eclipse.xtext.resource.XtextResourceSet;
 import org.junit.Test;
 import org.protelis.lang.datatype.Field;
-import org.xml.sax.SAXException;
 
 import com.google.inject.Injector;
 
@@ -104,7 +98,28 @@ public class TestInSimulator {
     }
 
     @SafeVarargs
-    private static <T> void runSimulation(final String relativeFilePath, final double finalTime, final Consumer<Environment<Object>>... checkProcedures) throws InstantiationException, IllegalAccessException, InvocationTargetException, ClassNotFoundException, SAXException, IOException, ParserConfigurationException, InterruptedException, ExecutionException  {
+    private static <T> void runSimulation(final String relativeFilePath, final double finalTime, final Consumer<Environment<Object>>... checkProcedures) throws Exception {
+        final Environment<Object> env = load(relativeFilePath);
+        final Simulation<Object> sim = new Engine<>(env, new DoubleTime(finalTime));
+        sim.addCommand(new StateCommand<>().run().build());
+        /*
+         * Use this thread: intercepts failures.
+         */
+        sim.run();
+        Arrays.stream(checkProcedures).forEachOrdered(p -> p.accept(env));
+    }
+
+    /**
+     * Builds the environment of a simulation in the test resources, without
+     * running it.
+     * 
+     * @param relativeFilePath
+     *            the simulation file, relative to the simulations folder
+     * @return the {@link Environment}
+     * @throws Exception
+     *             in case of failure
+     */
+    static Environment<Object> load(final String relativeFilePath) throws Exception {
         final Resource res = XTEXT.getResource(URI.createURI("classpath:/simulations/" + relativeFilePath), true);
         final IGenerator generator = INJECTOR.getInstance(IGenerator.class);
         final InMemoryFileSystemAccess fsa = INJECTOR.getInstance(InMemoryFileSystemAccess.class);
@@ -114,14 +129,7 @@ public class TestInSimulator {
             fail();
         }
         final ByteArrayInputStream strIS = new ByteArrayInputStream(files.stream().findFirst().get().toString().getBytes(Charsets.UTF_8));
-        final Environment<Object> env = EnvironmentBuilder.build(strIS).get().getEnvironment();
-        final Simulation<Object> sim = new Engine<>(env, new DoubleTime(finalTime));
-        sim.addCommand(new StateCommand<>().run().build());
-        /*
-         * Use this thread: intercepts failures.
-         */
-        sim.run();
-        Arrays.stream(checkProcedures).forEachOrdered(p -> p.accept(env));
+        return EnvironmentBuilder.build(strIS).get().getEnvironment();
     }
 
     private static <T> Consumer<Environment<T>> checkOnNodes(final Consumer<Node<T>> proc) {
@@ -14,6 +14,12 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import org.apache.commons.math3.random.MersenneTwister;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.junit.Test;
@@ -28,6 +34,7 @@ import it.unibo.alchemist.model.implementations.reactions.Event;
 import it.unibo.alchemist.model.interfaces.Action;
 import it.unibo.alchemist.model.interfaces.Condition;
 import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Molecule;
 import it.unibo.alchemist.model.interfaces.Node;
 import it.unibo.alchemist.model.interfaces.Reaction;
 import it.unibo.alchemist.model.interfaces.TimeDistribution;
@@ -38,6 +45,8 @@ import it.unibo.alchemist.model.interfaces.TimeDistribution;
 public class TestIncarnation {
 
     private static final ProtelisIncarnation INC = ProtelisIncarnation.instance();
+    private static final int THREADS = 4;
+    private static final int EVALUATIONS = 1000;
 
     /**
      * Tests the ability of {@link ProtelisIncarnation} of properly building a
@@ -56,6 +65,17 @@ public class TestIncarnation {
         final TimeDistribution<Object> standard = INC.createTimeDistribution(rng, env, node, "3");
         assertNotNull(standard);
         assertEquals(3d, standard.getRate(), 0d);
+        assertEquals(3d, INC.createTimeDistribution(rng, env, node, "3 aligned 4").getRate(), 0d);
+        for (final String invalid : new String[] {
+            "1 aligned x", "1 aligned 0", "1 aligned -2", "1 aligned 99999999999", "1 aligned 4 5",
+        }) {
+            try {
+                INC.createTimeDistribution(rng, env, node, invalid);
+                fail();
+            } catch (final IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(invalid));
+            }
+        }
         final Reaction<Object> generic = INC.createReaction(rng, env, node, standard, null);
         assertNotNull(generic);
         assertTrue(generic instanceof Event);
@@ -118,4 +138,37 @@ public class TestIncarnation {
         assertEquals("foo", INC.createConcentration("let a = \"foo\"; a"));
     }
 
+    /**
+     * Threads evaluating the same property concurrently do not see each
+     * other's values.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testConcurrentProperties() throws Exception {
+        final RandomGenerator rng = new MersenneTwister(0);
+        final Environment<Object> env = new Continuous2DEnvironment<>();
+        final Molecule mol = INC.createMolecule("testConcurrentProperties");
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<?>> results = new ArrayList<>(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                final Node<Object> node = INC.createNode(rng, env, null);
+                node.setConcentration(mol, (double) t);
+                final double expected = 2 * t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < EVALUATIONS; i++) {
+                        assertEquals(expected, INC.getProperty(node, mol, "value * 2"), 0);
+                    }
+                }));
+            }
+            for (final Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
 }
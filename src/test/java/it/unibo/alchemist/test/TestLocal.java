@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.implementations.concentrations.Local;
+
+/**
+ */
+public class TestLocal {
+
+    /**
+     * Strings are converted exactly when {@link Double#valueOf(String)}
+     * accepts them, and are otherwise returned as they are.
+     */
+    @Test
+    public void testParse() {
+        for (final String s : Arrays.asList("1", "-1.5", "+.5", "5.", "1e3", "1E-3", " 2.5 ", "3f", "4D",
+                "NaN", "-Infinity", "0x1p4", "0X.8P-1", "0x1.8p1d")) {
+            assertEquals(s, Double.valueOf(s), Local.parse(s));
+        }
+        for (final String s : Arrays.asList("", " ", ".", "-", "1e", "1e+", "e3", "1.2.3", "0x1", "0xp1",
+                "Nan", "Inf", "1 2", "12a", "\u0661", "--1", "1ff", "x")) {
+            assertSame(s, s, Local.parse(s));
+        }
+        assertEquals(Boolean.TRUE, Local.parse("TRUE"));
+        assertEquals(Boolean.FALSE, Local.parse("false"));
+    }
+
+}
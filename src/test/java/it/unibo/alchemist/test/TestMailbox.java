@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.protelis.Mailbox;
+
+/**
+ */
+public class TestMailbox {
+
+    private static final int THREADS = 8;
+    private static final int SENDERS_PER_THREAD = 50;
+    private static final int MESSAGES = 2000;
+
+    /**
+     * Many threads post concurrently while the receiver keeps draining: no
+     * message can be lost, duplicated or received out of order, and drained
+     * messages are always sorted by sender.
+     *
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testConcurrentSenders() throws Exception {
+        final Mailbox<Integer, Integer> mailbox = new Mailbox<>(Comparator.naturalOrder(), true);
+        final int senders = THREADS * SENDERS_PER_THREAD;
+        final int[] lastSeen = new int[senders];
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                final int first = t * SENDERS_PER_THREAD;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int message = 1; message <= MESSAGES; message++) {
+                        for (int sender = first; sender < first + SENDERS_PER_THREAD; sender++) {
+                            mailbox.post(sender, message);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            while (running.get()) {
+                check(mailbox.drain(), lastSeen);
+                running.set(!results.stream().allMatch(Future::isDone));
+            }
+            for (final Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        check(mailbox.drain(), lastSeen);
+        assertTrue(mailbox.isEmpty());
+        final int[] expected = new int[senders];
+        Arrays.fill(expected, MESSAGES);
+        assertTrue(Arrays.equals(expected, lastSeen));
+    }
+
+    private static void check(final Map<Integer, Integer> drained, final int[] lastSeen) {
+        int previousSender = -1;
+        for (final Map.Entry<Integer, Integer> message : drained.entrySet()) {
+            final int sender = message.getKey();
+            assertTrue(sender > previousSender);
+            previousSender = sender;
+            assertTrue(message.getValue() > lastSeen[sender]);
+            lastSeen[sender] = message.getValue();
+        }
+    }
+
+    /**
+     * In concurrent mode, the drain order does not depend on the posting
+     * order.
+     */
+    @Test
+    public void testDeterministicOrder() {
+        final Mailbox<Integer, String> mailbox = new Mailbox<>(Comparator.naturalOrder(), true);
+        mailbox.post(3, "c");
+        mailbox.post(1, "a");
+        mailbox.post(2, "b");
+        mailbox.post(1, "A");
+        assertEquals(Arrays.asList(1, 2, 3), new ArrayList<>(mailbox.drain().keySet()));
+        mailbox.post(2, "b");
+        assertEquals("b", mailbox.drain().get(2));
+        assertEquals(0, mailbox.drain().size());
+    }
+
+    /**
+     * In sequential mode, messages are drained in order of arrival, and the
+     * drained buffer is not affected by later posts. Switching mode keeps the
+     * pending messages.
+     */
+    @Test
+    public void testSequentialSwap() {
+        final Mailbox<Integer, String> mailbox = new Mailbox<>(Comparator.naturalOrder());
+        mailbox.post(3, "c");
+        mailbox.post(1, "a");
+        mailbox.post(3, "C");
+        final Map<Integer, String> drained = mailbox.drain();
+        assertEquals(Arrays.asList(3, 1), new ArrayList<>(drained.keySet()));
+        assertEquals("C", drained.get(3));
+        mailbox.post(2, "b");
+        assertEquals(2, drained.size());
+        mailbox.setConcurrent(true);
+        mailbox.post(1, "a");
+        assertEquals(Arrays.asList(1, 2), new ArrayList<>(mailbox.drain().keySet()));
+        assertTrue(mailbox.isEmpty());
+    }
+
+    /**
+     * Draining does not allocate: the two buffers are swapped, and the one
+     * drained before is cleared in place.
+     */
+    @Test
+    public void testBuffersReused() {
+        for (final boolean concurrent : new boolean[] { false, true }) {
+            final Mailbox<Integer, String> mailbox = new Mailbox<>(Comparator.naturalOrder(), concurrent);
+            mailbox.post(1, "a");
+            final Map<Integer, String> first = mailbox.drain();
+            mailbox.post(2, "b");
+            final Map<Integer, String> second = mailbox.drain();
+            assertNotSame(first, second);
+            assertEquals(Collections.singletonMap(2, "b"), second);
+            mailbox.post(3, "c");
+            assertSame(first, mailbox.drain());
+            assertEquals(Collections.singletonMap(3, "c"), first);
+            assertSame(second, mailbox.drain());
+            assertTrue(second.isEmpty());
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.protelis.MappedFileReader;
+import it.unibo.alchemist.protelis.MappedFileWriter;
+import it.unibo.alchemist.protelis.RoundExporter;
+import it.unibo.alchemist.protelis.RoundReader;
+
+/**
+ */
+public class TestMappedFile {
+
+    private static final int CHUNK = 64;
+    private static final int RECORDS = 1000;
+    private static final int MAX_ARRAY = 150;
+
+    /**
+     * Records crossing the chunk boundaries, or larger than a chunk, are read
+     * back unchanged, and the file is truncated to the written size.
+     *
+     * @throws IOException
+     *             in case of failure
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        final Path file = Files.createTempFile("alchemist", ".bin");
+        try {
+            final long size;
+            try (MappedFileWriter out = new MappedFileWriter(file, CHUNK)) {
+                for (int i = 0; i < RECORDS; i++) {
+                    out.putVarInt(i * RECORDS);
+                    out.putDouble(i / 3d);
+                    out.putString("record" + i);
+                    out.putBytes(new byte[i % MAX_ARRAY]);
+                    out.putLong(i);
+                }
+                size = out.position();
+            }
+            assertEquals(size, Files.size(file));
+            try (MappedFileReader in = new MappedFileReader(file, CHUNK)) {
+                for (int i = 0; i < RECORDS; i++) {
+                    assertEquals(i * RECORDS, in.getVarInt());
+                    assertEquals(i / 3d, in.getDouble(), 0);
+                    assertEquals("record" + i, in.getString());
+                    assertArrayEquals(new byte[i % MAX_ARRAY], in.getBytes());
+                    assertEquals(i, in.getLong());
+                }
+                assertTrue(in.isAtEnd());
+                in.seek(0);
+                assertEquals(0, in.getVarInt());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Exported records of any type are streamed back in order, across
+     * several blocks, and strings share their dictionary entries.
+     *
+     * @throws IOException
+     *             in case of failure
+     */
+    @Test
+    public void testRoundExport() throws IOException {
+        final Path file = Files.createTempFile("alchemist", ".rounds");
+        final int records = RoundExporter.BLOCK * 2 + 1;
+        try {
+            try (RoundExporter exporter = new RoundExporter(file, records)) {
+                for (int i = 0; i < records; i++) {
+                    assertTrue(exporter.export(i, i % MAX_ARRAY, exportedValue(i)));
+                }
+            }
+            assertRecords(file, records);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * A blocking exporter with a tiny queue makes programs wait, and loses
+     * nothing.
+     *
+     * @throws IOException
+     *             in case of failure
+     */
+    @Test
+    public void testBlockingExport() throws IOException {
+        final Path file = Files.createTempFile("alchemist", ".rounds");
+        final int records = RoundExporter.BLOCK * 2 + 1;
+        try {
+            try (RoundExporter exporter = new RoundExporter(file, 1)) {
+                assertTrue(exporter.isBlocking());
+                for (int i = 0; i < records; i++) {
+                    assertTrue(exporter.export(i, i % MAX_ARRAY, exportedValue(i)));
+                }
+                assertEquals(0, exporter.getDropped());
+            }
+            assertRecords(file, records);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * A lossy exporter counts the records it drops, and fails when closed if
+     * it dropped some. Exporting after closing fails.
+     *
+     * @throws IOException
+     *             in case of failure
+     */
+    @Test
+    public void testDroppedRecords() throws IOException {
+        final Path file = Files.createTempFile("alchemist", ".rounds");
+        final int records = RoundExporter.BLOCK * 16;
+        try {
+            final RoundExporter exporter = new RoundExporter(file, 1, false);
+            assertFalse(exporter.isBlocking());
+            long drops = 0;
+            for (int i = 0; i < records; i++) {
+                if (!exporter.export(i, i % MAX_ARRAY, exportedValue(i))) {
+                    drops++;
+                }
+            }
+            assertEquals(drops, exporter.getDropped());
+            try {
+                exporter.close();
+                assertEquals(0, drops);
+            } catch (final IOException e) {
+                assertTrue(drops > 0);
+            }
+            assertEquals(records - drops, exporter.getWritten());
+            try {
+                exporter.export(0, 0, null);
+                fail();
+            } catch (final IllegalStateException e) {
+                assertEquals(drops, exporter.getDropped());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Distinct strings beyond the dictionary size reset it, and are still
+     * read back.
+     *
+     * @throws IOException
+     *             in case of failure
+     */
+    @Test
+    public void testDictionaryReset() throws IOException {
+        final Path file = Files.createTempFile("alchemist", ".rounds");
+        final int records = RoundExporter.DICTIONARY * 3;
+        try {
+            try (RoundExporter exporter = new RoundExporter(file)) {
+                for (int i = 0; i < records; i++) {
+                    assertTrue(exporter.export(i, 0, "s" + i));
+                }
+            }
+            try (RoundReader reader = new RoundReader(file)) {
+                for (int i = 0; i < records; i++) {
+                    assertTrue(reader.next());
+                    assertEquals("s" + i, reader.getValue());
+                }
+                assertFalse(reader.next());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Once the writer has stopped, exports fail instead of queueing records
+     * that would never be written.
+     *
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testStoppedWriter() throws Exception {
+        final Path file = Files.createTempFile("alchemist", ".rounds");
+        try {
+            final RoundExporter exporter = new RoundExporter(file);
+            final String name = RoundExporter.class.getSimpleName() + "-" + file.getFileName();
+            final Thread writer = Thread.getAllStackTraces().keySet().stream()
+                    .filter(t -> t.getName().equals(name))
+                    .findFirst()
+                    .get();
+            writer.interrupt();
+            writer.join();
+            try {
+                exporter.export(0, 0, 1);
+                fail();
+            } catch (final IllegalStateException e) {
+                assertEquals(0, exporter.getDropped());
+            }
+            try {
+                exporter.close();
+                fail();
+            } catch (final IOException e) {
+                assertEquals(0, exporter.getWritten());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertRecords(final Path file, final int records) throws IOException {
+        try (RoundReader reader = new RoundReader(file)) {
+            for (int i = 0; i < records; i++) {
+                assertTrue(reader.next());
+                assertEquals(i, reader.getTime(), 0);
+                assertEquals(i % MAX_ARRAY, reader.getNode());
+                final Object expected = exportedValue(i);
+                assertEquals(expected instanceof Integer ? ((Integer) expected).doubleValue() : expected,
+                        reader.getValue());
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    private static Object exportedValue(final int i) {
+        switch (i % 4) {
+        case 0:
+            return i;
+        case 1:
+            return i % 8 == 1;
+        case 2:
+            return "value" + i % MAX_ARRAY;
+        default:
+            return null;
+        }
+    }
+
+}
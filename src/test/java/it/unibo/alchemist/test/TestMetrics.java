@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.ProtelisIncarnation;
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Molecule;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.protelis.Histogram;
+import it.unibo.alchemist.protelis.MetricsRegistry;
+import it.unibo.alchemist.protelis.ProgramMetrics;
+
+/**
+ * Rounds record metrics without writing on the node, and the values are
+ * written on demand.
+ */
+public class TestMetrics {
+
+    private static final int ROUNDS = 10;
+
+    /**
+     * Metrics molecules are written, under names qualified by the program,
+     * when the node is read, and hold the last recorded values. Publishing
+     * does not count as a change of the node.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testPublishOnRead() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("nbr02.psim");
+        forEachProgram(env, p -> p.enableMetrics(true));
+        for (int i = 0; i < ROUNDS; i++) {
+            TestProgramInstances.round(env);
+        }
+        final ProtelisIncarnation incarnation = ProtelisIncarnation.instance();
+        for (final Node<Object> node : env.getNodes()) {
+            final long version = ((ProtelisNode) node).getVersion();
+            for (final RunProtelisProgram program : ((ProtelisNode) node).getPrograms()) {
+                final ProgramMetrics metrics = program.getMetrics().get();
+                final Map<String, Histogram> histograms = metrics.getHistograms();
+                assertEquals(ROUNDS, histograms.get(ProgramMetrics.CYCLE_TIME).getCount());
+                for (final Map.Entry<String, Histogram> metric : histograms.entrySet()) {
+                    assertFalse(node.contains(incarnation.createMolecule(metric.getKey())));
+                    final Molecule molecule = incarnation.createMolecule(
+                            ProgramMetrics.moleculeName(metric.getKey(), metrics.getProgram()));
+                    assertEquals(metric.getValue().getLast(), node.getConcentration(molecule));
+                }
+                assertTrue(program.publishMetrics());
+            }
+            assertEquals(version, ((ProtelisNode) node).getVersion());
+        }
+    }
+
+    /**
+     * Without molecules, or without metrics, nothing is published.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testNoMolecules() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("nbr02.psim");
+        forEachProgram(env, p -> assertFalse(p.publishMetrics()));
+        forEachProgram(env, p -> p.enableMetrics(false));
+        TestProgramInstances.round(env);
+        forEachProgram(env, p -> assertFalse(p.publishMetrics()));
+    }
+
+    /**
+     * Each environment collects the metrics of its own programs.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testRegistryPerEnvironment() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("nbr02.psim");
+        final Environment<Object> other = TestInSimulator.load("nbr02.psim");
+        forEachProgram(env, p -> p.enableMetrics(false));
+        TestProgramInstances.round(env);
+        final List<ProgramMetrics> metrics = MetricsRegistry.of(env).getAll();
+        assertEquals(env.getNodesNumber(), metrics.size());
+        forEachProgram(env, p -> assertTrue(metrics.contains(p.getMetrics().get())));
+        assertEquals(env.getNodesNumber(),
+                MetricsRegistry.of(env).aggregate().get(ProgramMetrics.CYCLE_TIME).getCount());
+        assertTrue(MetricsRegistry.of(other).getAll().isEmpty());
+        MetricsRegistry.of(env).clear();
+        assertTrue(MetricsRegistry.of(env).getAll().isEmpty());
+    }
+
+    private static void forEachProgram(final Environment<Object> env,
+            final Consumer<RunProtelisProgram> action) {
+        env.getNodes().forEach(n -> ((ProtelisNode) n).getPrograms().forEach(action));
+    }
+
+}
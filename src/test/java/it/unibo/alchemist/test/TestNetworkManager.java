@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
+
+import org.junit.Test;
+import org.protelis.vm.util.CodePath;
+
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.protelis.AlchemistNetworkManager;
+import it.unibo.alchemist.protelis.Checkpoint;
+import it.unibo.alchemist.protelis.CodePathDictionary;
+import it.unibo.alchemist.protelis.EncodedState;
+
+/**
+ */
+public class TestNetworkManager {
+
+    private static final int ROUNDS = 30;
+    private static final int SILENT_NODE = 3;
+    private static final int SILENT_ROUND = 10;
+    private static final double RETENTION = 2.5;
+
+    /**
+     * Delta encoding gives the same values as full states, and actually
+     * ships less entries and less bytes.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testDeltaEncoding() throws Exception {
+        final Environment<Object> full = TestInSimulator.load("distanceTo.psim");
+        final Environment<Object> delta = TestInSimulator.load("distanceTo.psim");
+        configure(full, m -> m.setWireEncoding(true));
+        configure(delta, m -> {
+            m.setWireEncoding(true);
+            m.setDeltaEncoding(true);
+        });
+        long saved = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            TestProgramInstances.round(full);
+            TestProgramInstances.round(delta);
+            assertEquals(TestProgramInstances.values(full), TestProgramInstances.values(delta));
+            for (final AlchemistNetworkManager manager : TestProgramInstances.managers(delta).values()) {
+                saved += manager.getLastRoundSavedEntries();
+            }
+        }
+        assertTrue(saved > 0);
+        assertTrue(receivedBytes(delta) < receivedBytes(full));
+    }
+
+    /**
+     * Without wire mode, delta encoding has no effect: receivers share the
+     * state of the sender.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testDeltaInProcess() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("distanceTo.psim");
+        configure(env, m -> m.setDeltaEncoding(true));
+        for (int i = 0; i < ROUNDS; i++) {
+            TestProgramInstances.round(env);
+            for (final AlchemistNetworkManager manager : TestProgramInstances.managers(env).values()) {
+                assertEquals(0, manager.getLastRoundSavedEntries());
+                assertEquals(0, manager.getLastRoundReceivedBytes());
+            }
+        }
+    }
+
+    private static long receivedBytes(final Environment<Object> env) {
+        return TestProgramInstances.managers(env).values().stream()
+                .mapToLong(AlchemistNetworkManager::getTotalReceivedBytes)
+                .sum();
+    }
+
+    /**
+     * Receivers that missed a message of a sender get its full state, and
+     * rebuild the same values as without delta encoding.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testDeltaResync() throws Exception {
+        final Environment<Object> full = TestInSimulator.load("nbr02.psim");
+        final Environment<Object> delta = TestInSimulator.load("nbr02.psim");
+        configure(delta, m -> {
+            m.setWireEncoding(true);
+            m.setDeltaEncoding(true);
+        });
+        for (int i = 0; i < ROUNDS; i++) {
+            final IntPredicate sending = i == SILENT_ROUND ? id -> id != SILENT_NODE : id -> true;
+            TestProgramInstances.round(full, sending);
+            TestProgramInstances.round(delta, sending);
+            assertEquals(TestProgramInstances.values(full), TestProgramInstances.values(delta));
+        }
+    }
+
+    /**
+     * The state of a neighbor that stops sending is retained for the
+     * retention time, then evicted.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testRetention() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("distanceTo.psim");
+        configure(env, m -> m.setRetentionTime(RETENTION));
+        final Node<Object> silent = env.getNodes().stream()
+                .max(Comparator.comparingInt(n -> env.getNeighborhood(n).size()))
+                .get();
+        final Map<Integer, AlchemistNetworkManager> managers = TestProgramInstances.managers(env);
+        final List<AlchemistNetworkManager> receivers = new ArrayList<>();
+        env.getNeighborhood(silent).forEach(n -> receivers.add(managers.get(n.getId())));
+        assertFalse(receivers.isEmpty());
+        for (int i = 0; i < ROUNDS; i++) {
+            TestProgramInstances.round(env, i >= SILENT_ROUND ? id -> id != silent.getId() : id -> true);
+            /*
+             * Rounds are one time unit apart: the last state is retained for
+             * two rounds after the one that received it
+             */
+            final long expected = i > SILENT_ROUND && i <= SILENT_ROUND + (int) RETENTION ? 1 : 0;
+            for (final AlchemistNetworkManager receiver : receivers) {
+                assertEquals(expected, receiver.getLastRoundRetained());
+            }
+        }
+    }
+
+    /**
+     * Compact encoding is off by default, and gives the same values as
+     * plain states when enabled.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testCompactEncoding() throws Exception {
+        final Environment<Object> plain = TestInSimulator.load("distanceTo.psim");
+        final Environment<Object> compact = TestInSimulator.load("distanceTo.psim");
+        TestProgramInstances.managers(plain).values().forEach(m -> assertFalse(m.isCompactEncoding()));
+        configure(compact, m -> m.setCompactEncoding(true));
+        for (int i = 0; i < ROUNDS; i++) {
+            TestProgramInstances.round(plain);
+            TestProgramInstances.round(compact);
+            assertEquals(TestProgramInstances.values(plain), TestProgramInstances.values(compact));
+        }
+    }
+
+    /**
+     * An {@link EncodedState} has the same content as the state it encodes,
+     * and can be read by code.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testEncodeDecode() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("distanceTo.psim");
+        TestProgramInstances.round(env);
+        final Map<CodePath, Object> state = TestProgramInstances.managers(env).values().stream()
+                .map(AlchemistNetworkManager::getNeighborState)
+                .filter(s -> !s.isEmpty())
+                .findFirst().get()
+                .values().iterator().next();
+        assertFalse(state.isEmpty());
+        final CodePathDictionary dictionary = new CodePathDictionary();
+        final EncodedState encoded = dictionary.encode(state);
+        assertEquals(state, encoded);
+        assertEquals(encoded, state);
+        assertSame(encoded, dictionary.encode(encoded));
+        assertEquals(state.size(), dictionary.size());
+        for (final Map.Entry<CodePath, Object> entry : state.entrySet()) {
+            final int code = dictionary.indexOf(entry.getKey());
+            assertSame(entry.getKey(), dictionary.decode(code));
+            assertEquals(entry.getValue(), encoded.getByCode(code));
+            assertEquals(entry.getValue(), encoded.get(entry.getKey()));
+        }
+        assertNull(encoded.getByCode(dictionary.size()));
+        assertEquals(new HashMap<>(state), new HashMap<>(encoded));
+    }
+
+    /**
+     * The managers of the neighbors are looked up again when the sender
+     * releases its caches or loads a checkpoint, but not when the neighbors
+     * release theirs, and messages keep reaching them.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testRecipientsCache() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("distanceTo.psim");
+        final Node<Object> sender = env.getNodes().stream()
+                .max(Comparator.comparingInt(n -> env.getNeighborhood(n).size()))
+                .get();
+        final Map<Integer, AlchemistNetworkManager> managers = TestProgramInstances.managers(env);
+        final AlchemistNetworkManager manager = managers.get(sender.getId());
+        TestProgramInstances.round(env);
+        final long rebuilds = manager.getRecipientsRebuilds();
+        final long hits = manager.getRecipientsHits();
+        TestProgramInstances.round(env);
+        assertEquals(rebuilds, manager.getRecipientsRebuilds());
+        assertEquals(hits + 1, manager.getRecipientsHits());
+        manager.release();
+        TestProgramInstances.round(env);
+        assertEquals(rebuilds + 1, manager.getRecipientsRebuilds());
+        env.getNeighborhood(sender).forEach(n -> managers.get(n.getId()).release());
+        TestProgramInstances.round(env);
+        assertEquals(rebuilds + 1, manager.getRecipientsRebuilds());
+        for (final Node<Object> neighbor : env.getNeighborhood(sender)) {
+            assertTrue(managers.get(neighbor.getId()).getNeighborState().containsKey(sender));
+        }
+        final Path file = Files.createTempFile("alchemist", ".bin");
+        try {
+            Checkpoint.write(env, file);
+            Checkpoint.restore(env, file);
+        } finally {
+            Files.delete(file);
+        }
+        TestProgramInstances.round(env);
+        assertEquals(rebuilds + 2, manager.getRecipientsRebuilds());
+        for (final Node<Object> neighbor : env.getNeighborhood(sender)) {
+            assertTrue(managers.get(neighbor.getId()).getNeighborState().containsKey(sender));
+        }
+    }
+
+    /**
+     * Serialized programs rebuild their network managers with the same
+     * settings.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testSerialization() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("distanceTo.psim");
+        configure(env, m -> {
+            m.setDeltaEncoding(true);
+            m.setRetentionTime(RETENTION);
+            m.setCompactEncoding(true);
+            m.setWireEncoding(true);
+        });
+        env.getNodes().forEach(n -> ((ProtelisNode) n).getPrograms().forEach(p -> p.setConcurrentExecution(true)));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(env);
+        }
+        final Environment<Object> copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            @SuppressWarnings("unchecked")
+            final Environment<Object> read = (Environment<Object>) in.readObject();
+            copy = read;
+        }
+        final Map<Integer, AlchemistNetworkManager> managers = TestProgramInstances.managers(copy);
+        assertEquals(copy.getNodesNumber(), managers.size());
+        for (final AlchemistNetworkManager manager : managers.values()) {
+            assertTrue(manager.isDeltaEncoding());
+            assertEquals(RETENTION, manager.getRetentionTime(), 0);
+            assertTrue(manager.isCompactEncoding());
+            assertTrue(manager.isWireEncoding());
+            assertTrue(manager.isConcurrentDelivery());
+        }
+    }
+
+    private static void configure(final Environment<Object> env, final Consumer<AlchemistNetworkManager> setting) {
+        final Map<Integer, AlchemistNetworkManager> managers = TestProgramInstances.managers(env);
+        assertEquals(env.getNodesNumber(), managers.size());
+        managers.values().forEach(setting);
+    }
+
+}
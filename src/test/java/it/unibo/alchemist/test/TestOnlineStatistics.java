@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.protelis.OnlineStatistics;
+
+/**
+ */
+public class TestOnlineStatistics {
+
+    private static final int STEPS = 10;
+    private static final int SAMPLES = 1000;
+    private static final double DELTA = 1e-9;
+
+    /**
+     * Samples accepted concurrently give the same mean and variance as a
+     * two-pass computation.
+     */
+    @Test
+    public void testAgainstTwoPass() {
+        final double[][] samples = new double[STEPS][SAMPLES];
+        final Random random = new Random(0);
+        for (final double[] step : samples) {
+            for (int i = 0; i < SAMPLES; i++) {
+                step[i] = random.nextGaussian() * STEPS + SAMPLES;
+            }
+        }
+        final OnlineStatistics statistics = new OnlineStatistics();
+        IntStream.range(0, STEPS * SAMPLES).parallel()
+                .forEach(i -> statistics.accept(i % STEPS, samples[i % STEPS][i / STEPS]));
+        statistics.accept(0, Double.NaN);
+        assertEquals(STEPS, statistics.size());
+        for (int step = 0; step < STEPS; step++) {
+            final double mean = Arrays.stream(samples[step]).average().getAsDouble();
+            double squares = 0;
+            for (final double sample : samples[step]) {
+                squares += (sample - mean) * (sample - mean);
+            }
+            assertEquals(SAMPLES, statistics.getCount(step));
+            assertEquals(mean, statistics.getMean(step), DELTA);
+            assertEquals(squares / (SAMPLES - 1), statistics.getVariance(step), DELTA);
+        }
+        assertTrue(Double.isNaN(statistics.getMean(STEPS)));
+        assertTrue(Double.isNaN(statistics.getVariance(STEPS)));
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.protelis.ProgramAnalysis;
+
+/**
+ * The variables a program reads and writes are found when all the accesses
+ * are explicit, and the analysis gives up otherwise.
+ */
+public class TestProgramAnalysis {
+
+    /**
+     * Accesses through self with literal names are resolved.
+     */
+    @Test
+    public void testDecidable() {
+        final ProgramAnalysis analysis = ProgramAnalysis.of(
+                "let x = self.getEnvironmentVariable(\"a\");\n"
+                + "if (self.hasEnvironmentVariable('b')) {\n"
+                + "  self.putEnvironmentVariable(\"c\", x)\n"
+                + "} else {\n"
+                + "  self.removeEnvironmentVariable( \"d\" )\n"
+                + "}");
+        assertTrue(analysis.isDecidable());
+        assertEquals(names("a", "b"), analysis.getReads().get());
+        assertEquals(names("c", "d"), analysis.getWrites().get());
+    }
+
+    /**
+     * Programs that do not touch the variables read and write nothing.
+     */
+    @Test
+    public void testNoAccess() {
+        final ProgramAnalysis analysis = ProgramAnalysis.of("rep (x <- self.getDeviceUID()) { minHood(nbr(x)) }");
+        assertTrue(analysis.isDecidable());
+        assertEquals(Collections.emptySet(), analysis.getReads().get());
+        assertEquals(Collections.emptySet(), analysis.getWrites().get());
+    }
+
+    /**
+     * Comments are ignored, strings are not.
+     */
+    @Test
+    public void testComments() {
+        final ProgramAnalysis analysis = ProgramAnalysis.of(
+                "// self.putEnvironmentVariable(\"x\", 1) and env\n"
+                + "/* passing self around\n"
+                + "   import foo */\n"
+                + "self.putEnvironmentVariable(\"a // b\", 1)");
+        assertTrue(analysis.isDecidable());
+        assertEquals(Collections.emptySet(), analysis.getReads().get());
+        assertEquals(names("a // b"), analysis.getWrites().get());
+    }
+
+    /**
+     * The analysis can not decide if the environment is reached other than
+     * with literal names through self, if self is passed as a value, or if
+     * other modules are involved.
+     */
+    @Test
+    public void testUndecidable() {
+        for (final String source : Arrays.asList(
+                "env.get(\"a\")",
+                "self.getExecutionEnvironment().put(\"a\", 1)",
+                "let name = \"a\"; self.getEnvironmentVariable(name)",
+                "self.putEnvironmentVariable(\"a\" + 1, 1)",
+                "foo(self)",
+                "let device = self; 1",
+                "import protelis:coord:spreading\ndistanceTo(true)",
+                "protelis:coord:spreading")) {
+            final ProgramAnalysis analysis = ProgramAnalysis.of(source);
+            assertFalse(source, analysis.isDecidable());
+            assertFalse(analysis.getReads().isPresent());
+            assertFalse(analysis.getWrites().isPresent());
+        }
+    }
+
+    private static Set<String> names(final String... names) {
+        return new LinkedHashSet<>(Arrays.asList(names));
+    }
+
+}
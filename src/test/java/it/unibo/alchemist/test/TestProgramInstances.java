@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.actions.SendToNeighbor;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Action;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Molecule;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.protelis.AlchemistNetworkManager;
+import it.unibo.alchemist.protelis.CodePathDictionary;
+import it.unibo.alchemist.protelis.ProgramRegistry;
+
+/**
+ * Each program runs on its own copy of the parsed code, as in the baseline
+ * where every node parsed its program: the rep state of a node never leaks
+ * into another.
+ */
+public class TestProgramInstances {
+
+    private static final int ROUNDS = 100;
+
+    /**
+     * Every request to the registry gets a new copy of the program.
+     */
+    @Test
+    public void testRegistryCopies() {
+        final ProgramRegistry registry = new ProgramRegistry();
+        assertNotSame(registry.parse("1"), registry.parse("1"));
+        assertEquals(1, registry.size());
+    }
+
+    /**
+     * Dictionaries and analyses live in the cache entry of their source:
+     * they are shared while it is cached, and bounded along with it.
+     */
+    @Test
+    public void testRegistryBound() {
+        final ProgramRegistry registry = new ProgramRegistry(1, 1, TimeUnit.HOURS);
+        final CodePathDictionary dictionary = registry.getDictionary("1");
+        assertSame(dictionary, registry.getDictionary("1"));
+        assertSame(registry.getAnalysis("1"), registry.getAnalysis("1"));
+        registry.getDictionary("2");
+        registry.getAnalysis("3");
+        assertEquals(1, registry.size());
+        assertNotSame(dictionary, registry.getDictionary("1"));
+    }
+
+    /**
+     * In nbr02 each node starts from its own random number, then all the
+     * nodes of a connected component agree on their minimum.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testNbr02() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("nbr02.psim");
+        round(env);
+        final Map<Integer, Object> first = values(env);
+        assertEquals(env.getNodesNumber(), new HashSet<>(first.values()).size());
+        for (int i = 0; i < ROUNDS; i++) {
+            round(env);
+        }
+        final Map<Integer, Object> last = values(env);
+        for (final Set<Node<Object>> component : components(env)) {
+            final double min = component.stream()
+                    .mapToDouble(n -> (Double) first.get(n.getId()))
+                    .min().getAsDouble();
+            component.forEach(n -> assertEquals(min, (Double) last.get(n.getId()), 0));
+        }
+    }
+
+    /**
+     * In distanceTo the nodes of a connected component converge to the same
+     * value, either 0 if they are connected to the source or Infinity.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testDistanceTo() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("distanceTo.psim");
+        for (int i = 0; i < ROUNDS; i++) {
+            round(env);
+        }
+        final Map<Integer, Object> values = values(env);
+        for (final Set<Node<Object>> component : components(env)) {
+            final Object expected = values.get(component.iterator().next().getId());
+            assertTrue(expected.equals(0d) || expected.equals(Double.POSITIVE_INFINITY));
+            component.forEach(n -> assertEquals(expected, values.get(n.getId())));
+        }
+    }
+
+    /**
+     * Runs a round the way the engine does: each node computes, then each
+     * node sends.
+     * 
+     * @param env
+     *            the environment
+     */
+    static void round(final Environment<Object> env) {
+        round(env, id -> true);
+    }
+
+    /**
+     * Runs a round where only some nodes send their state. As in the engine,
+     * the reactions running programs move on to their next occurrence.
+     * 
+     * @param env
+     *            the environment
+     * @param sending
+     *            the ids of the nodes that send
+     */
+    static void round(final Environment<Object> env, final IntPredicate sending) {
+        final List<Action<Object>> sends = new ArrayList<>();
+        for (final Node<Object> node : sorted(env)) {
+            for (final Reaction<Object> reaction : node.getReactions()) {
+                boolean executed = false;
+                for (final Action<Object> action : reaction.getActions()) {
+                    if (action instanceof RunProtelisProgram) {
+                        action.execute();
+                        executed = true;
+                    } else if (action instanceof SendToNeighbor && sending.test(node.getId())) {
+                        sends.add(action);
+                    }
+                }
+                if (executed) {
+                    reaction.update(reaction.getTau(), true, env);
+                }
+            }
+        }
+        sends.forEach(Action::execute);
+    }
+
+    /**
+     * @param env
+     *            the environment
+     * @return the network manager of the program of each node, by node id
+     */
+    static Map<Integer, AlchemistNetworkManager> managers(final Environment<Object> env) {
+        final Map<Integer, AlchemistNetworkManager> res = new TreeMap<>();
+        for (final Node<Object> node : env.getNodes()) {
+            final ProtelisNode pNode = (ProtelisNode) node;
+            for (final RunProtelisProgram program : pNode.getPrograms()) {
+                res.put(node.getId(), pNode.getNetworkManager(program));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param env
+     *            the environment
+     * @return the value of the program of each node, by node id
+     */
+    static Map<Integer, Object> values(final Environment<Object> env) {
+        final Map<Integer, Object> res = new TreeMap<>();
+        for (final Node<Object> node : env.getNodes()) {
+            for (final Map.Entry<Molecule, Object> content : node.getContents().entrySet()) {
+                if (content.getKey() instanceof RunProtelisProgram) {
+                    res.put(node.getId(), content.getValue());
+                }
+            }
+        }
+        assertEquals(env.getNodesNumber(), res.size());
+        return res;
+    }
+
+    private static List<Node<Object>> sorted(final Environment<Object> env) {
+        final List<Node<Object>> res = new ArrayList<>(env.getNodes());
+        res.sort(Comparator.comparingInt(Node::getId));
+        return res;
+    }
+
+    private static List<Set<Node<Object>>> components(final Environment<Object> env) {
+        final List<Set<Node<Object>>> res = new ArrayList<>();
+        final Set<Node<Object>> visited = new HashSet<>();
+        for (final Node<Object> start : sorted(env)) {
+            if (visited.add(start)) {
+                final Set<Node<Object>> component = new HashSet<>();
+                final Deque<Node<Object>> queue = new ArrayDeque<>();
+                queue.add(start);
+                while (!queue.isEmpty()) {
+                    final Node<Object> node = queue.poll();
+                    component.add(node);
+                    for (final Node<Object> neighbor : env.getNeighborhood(node)) {
+                        if (visited.add(neighbor)) {
+                            queue.add(neighbor);
+                        }
+                    }
+                }
+                res.add(component);
+            }
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.ProtelisIncarnation;
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.actions.SendToNeighbor;
+import it.unibo.alchemist.model.implementations.environments.Continuous2DEnvironment;
+import it.unibo.alchemist.model.implementations.molecules.SimpleMolecule;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Molecule;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.protelis.MoleculeTable;
+
+/**
+ */
+public class TestProtelisNode {
+
+    private static final MoleculeTable MOLECULES = ProtelisIncarnation.instance().getMoleculeTable();
+
+    /**
+     * Once full, the table stops interning names.
+     */
+    @Test
+    public void testMoleculeTableBound() {
+        final MoleculeTable table = new MoleculeTable(2);
+        final MoleculeTable.Slot a = table.intern("a");
+        assertSame(a, table.intern("a"));
+        assertEquals(1, table.intern("b").getIndex());
+        final MoleculeTable.Slot c = table.intern("c");
+        assertEquals(-1, c.getIndex());
+        assertEquals(2, table.size());
+        assertNull(table.find("c"));
+        assertEquals(-1, table.indexOf(c.getMolecule()));
+        assertEquals(0, table.indexOf(a.getMolecule()));
+    }
+
+    /**
+     * The programs of a node, and those missing a send or a completion
+     * check, follow the reactions added to and removed from the node.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testProgramIndex() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("nbr02.psim");
+        final ProtelisNode node = (ProtelisNode) env.getNodeByID(0);
+        assertEquals(1, node.getPrograms().size());
+        final RunProtelisProgram program = node.getPrograms().get(0);
+        assertSame(program, node.getPrograms().get(0));
+        assertTrue(node.getProgramsWithoutSend().isEmpty());
+        assertTrue(node.getProgramsWithoutCompletionCheck().isEmpty());
+        assertNotNull(node.getNetworkManager(program));
+        final Reaction<Object> send = reaction(node, SendToNeighbor.class);
+        final Reaction<Object> run = reaction(node, RunProtelisProgram.class);
+        node.removeReaction(send);
+        assertEquals(Collections.singletonList(program), node.getProgramsWithoutSend());
+        assertEquals(Collections.singletonList(program), node.getProgramsWithoutCompletionCheck());
+        node.addReaction(send);
+        assertTrue(node.getProgramsWithoutSend().isEmpty());
+        assertTrue(node.getProgramsWithoutCompletionCheck().isEmpty());
+        /*
+         * Adding the same reaction twice counts twice
+         */
+        node.addReaction(run);
+        node.removeReaction(run);
+        assertEquals(Collections.singletonList(program), node.getPrograms());
+        node.removeReaction(run);
+        assertTrue(node.getPrograms().isEmpty());
+        assertTrue(node.getProgramsWithoutSend().isEmpty());
+        /*
+         * The manager outlives the reaction, as neighbors may still send
+         */
+        assertNotNull(node.getNetworkManager(program));
+        node.addReaction(run);
+        assertEquals(Collections.singletonList(program), node.getPrograms());
+        assertTrue(node.getProgramsWithoutSend().isEmpty());
+    }
+
+    private static Reaction<Object> reaction(final ProtelisNode node, final Class<?> action) {
+        for (final Reaction<Object> reaction : node.getReactions()) {
+            if (reaction.getActions().stream().anyMatch(action::isInstance)) {
+                return reaction;
+            }
+        }
+        throw new IllegalStateException(node + " has no " + action.getSimpleName());
+    }
+
+    /**
+     * Map, slot and primitive storage give the same answers, including for
+     * molecules that were interned after being written.
+     */
+    @Test
+    public void testStorageModes() {
+        final Environment<Object> env = new Continuous2DEnvironment<>();
+        check(new ProtelisNode(env, false), "map");
+        check(new ProtelisNode(env, true), "slots");
+        check(new ProtelisNode(env, true, true), "primitive");
+    }
+
+    private static void check(final ProtelisNode node, final String mode) {
+        final String number = "testStorageNumber" + mode;
+        final String plain = "testStoragePlain" + mode;
+        final String late = "testStorageLate" + mode;
+        final String missing = "testStorageMissing" + mode;
+        node.put(number, 1.0);
+        node.setConcentration(new SimpleMolecule(plain), "x");
+        /*
+         * Not a plain molecule: it is not interned when written
+         */
+        node.setConcentration(new SimpleMolecule(late) { private static final long serialVersionUID = 1L; }, true);
+        ProtelisIncarnation.instance().createMolecule(late);
+        assertEquals(1.0, node.get(number));
+        assertEquals("x", node.get(plain));
+        assertEquals(true, node.get(late));
+        assertTrue(node.has(late));
+        assertTrue(node.contains(new SimpleMolecule(plain)));
+        assertFalse(node.has(missing));
+        assertNull(node.get(missing));
+        assertNull(MOLECULES.find(missing));
+        assertEquals(3, node.getChemicalSpecies());
+        assertEquals(3, node.getContents().size());
+        assertEquals(1.0, node.getContents().get(MOLECULES.find(number).getMolecule()));
+        assertEquals(1.0, node.remove(number));
+        assertFalse(node.has(number));
+        assertEquals(2, node.getChemicalSpecies());
+    }
+
+    /**
+     * With primitive numbers, Protelis reads Doubles equal to the ones it
+     * wrote, and the contents include the numbers stored out of the map.
+     */
+    @Test
+    public void testPrimitiveNumbers() {
+        final ProtelisNode node = new ProtelisNode(new Continuous2DEnvironment<>(), true, true);
+        final String name = "testPrimitiveNumber";
+        final Double value = Double.valueOf(1.5);
+        node.put(name, value);
+        final Molecule molecule = MOLECULES.find(name).getMolecule();
+        assertEquals(value, node.get(name));
+        assertEquals(value, node.getConcentration(molecule));
+        assertEquals(value, node.getContents().get(molecule));
+        assertEquals(1.5, node.getNumericConcentration(molecule), 0);
+        assertEquals(1, node.getChemicalSpecies());
+        /*
+         * Numbers turning into other values, and back
+         */
+        node.put(name, "x");
+        assertEquals("x", node.get(name));
+        assertTrue(Double.isNaN(node.getNumericConcentration(molecule)));
+        assertEquals(1, node.getChemicalSpecies());
+        assertEquals(1, node.getContents().size());
+        final Double other = Double.valueOf(2.5);
+        node.put(name, other);
+        assertEquals(other, node.get(name));
+        assertEquals(1, node.getChemicalSpecies());
+        assertEquals(1, node.getContents().size());
+        assertEquals(other, node.remove(name));
+        assertFalse(node.contains(molecule));
+        assertEquals(0, node.getChemicalSpecies());
+        assertTrue(node.getContents().isEmpty());
+    }
+
+    /**
+     * Serialization keeps the variables of every storage mode, including the
+     * numbers stored out of the map.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testSerialization() throws Exception {
+        final Environment<Object> env = new Continuous2DEnvironment<>();
+        for (final ProtelisNode node : Arrays.asList(
+                new ProtelisNode(env, false), new ProtelisNode(env, true), new ProtelisNode(env, true, true))) {
+            node.put("testSerializationNumber", 1.5);
+            node.put("testSerializationBoolean", true);
+            node.put("testSerializationString", "x");
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(node);
+            }
+            final ProtelisNode copy;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                copy = (ProtelisNode) in.readObject();
+            }
+            assertEquals(node.getContents(), copy.getContents());
+            assertEquals(node.getChemicalSpecies(), copy.getChemicalSpecies());
+            assertEquals(node.getVersion(), copy.getVersion());
+            assertEquals(1.5, copy.get("testSerializationNumber"));
+            assertEquals(true, copy.get("testSerializationBoolean"));
+            assertEquals("x", copy.get("testSerializationString"));
+            copy.remove("testSerializationNumber");
+            assertEquals(2, copy.getChemicalSpecies());
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntPredicate;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.ProtelisIncarnation;
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+
+/**
+ * Once a program stops changing its value and export, its rounds are
+ * skipped until something it reads changes.
+ */
+public class TestQuiescence {
+
+    private static final String SIMULATION = "distanceTo.psim";
+    private static final int CONVERGENCE = 40;
+    private static final int SILENT_NODE = 55;
+    private static final int CHANGED_NODE = 22;
+    private static final long SEED = 7;
+
+    /**
+     * Converged nodes skip their rounds, neighbors of a silent node and nodes
+     * whose contents change wake up, and the values are always the same as
+     * without quiescence detection.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testSkipAndWakeUp() throws Exception {
+        final Environment<Object> env = TestInSimulator.load(SIMULATION);
+        final Environment<Object> reference = TestInSimulator.load(SIMULATION);
+        for (final Node<Object> node : env.getNodes()) {
+            ((ProtelisNode) node).getPrograms().forEach(p -> p.setQuiescenceDetection(true));
+        }
+        for (int i = 0; i < CONVERGENCE; i++) {
+            round(env, reference, id -> true);
+        }
+        /*
+         * Converged: every round is skipped
+         */
+        Map<Integer, Long> before = skipped(env);
+        round(env, reference, id -> true);
+        Map<Integer, Long> after = skipped(env);
+        for (final Integer id : before.keySet()) {
+            assertEquals(before.get(id) + 1, (long) after.get(id));
+        }
+        /*
+         * A node does not send: its neighbors run in the next round, and the
+         * others keep skipping
+         */
+        round(env, reference, id -> id != SILENT_NODE);
+        final Set<Integer> neighbors = new HashSet<>();
+        env.getNeighborhood(env.getNodeByID(SILENT_NODE)).forEach(n -> neighbors.add(n.getId()));
+        assertFalse(neighbors.isEmpty());
+        before = skipped(env);
+        round(env, reference, id -> true);
+        after = skipped(env);
+        for (final Integer id : before.keySet()) {
+            if (neighbors.contains(id)) {
+                assertEquals(before.get(id), after.get(id));
+            } else if (id != SILENT_NODE) {
+                assertEquals(before.get(id) + 1, (long) after.get(id));
+            }
+        }
+        /*
+         * The contents of a node change: it runs in the next round
+         */
+        for (int i = 0; i < CONVERGENCE; i++) {
+            round(env, reference, id -> true);
+        }
+        env.getNodeByID(CHANGED_NODE).setConcentration(ProtelisIncarnation.instance().createMolecule("changed"), 1);
+        before = skipped(env);
+        round(env, reference, id -> true);
+        after = skipped(env);
+        assertEquals(before.get(CHANGED_NODE), after.get(CHANGED_NODE));
+        assertTrue(programs(env).stream().anyMatch(p -> p.getSkippedRoundsFraction() > 0));
+    }
+
+    /**
+     * Changing the execution mode or the random stream of a converged
+     * program makes it run its next round.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testReconfigureConverged() throws Exception {
+        final Environment<Object> env = TestInSimulator.load(SIMULATION);
+        final Environment<Object> reference = TestInSimulator.load(SIMULATION);
+        programs(env).forEach(p -> p.setQuiescenceDetection(true));
+        for (int i = 0; i < CONVERGENCE; i++) {
+            round(env, reference, id -> true);
+        }
+        programs(env).forEach(p -> p.setConcurrentExecution(true));
+        Map<Integer, Long> before = skipped(env);
+        round(env, reference, id -> true);
+        assertEquals(before, skipped(env));
+        for (int i = 0; i < CONVERGENCE; i++) {
+            round(env, reference, id -> true);
+        }
+        programs(env).forEach(p -> p.setRandomStream(SEED));
+        before = skipped(env);
+        round(env, reference, id -> true);
+        assertEquals(before, skipped(env));
+    }
+
+    /**
+     * Reading the time within a function call prevents skipping, even if the
+     * value never changes.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testTimeInFunction() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("timeInFunction.psim");
+        programs(env).forEach(p -> p.setQuiescenceDetection(true));
+        for (int i = 0; i < CONVERGENCE; i++) {
+            TestProgramInstances.round(env);
+        }
+        TestProgramInstances.values(env).values().forEach(v -> assertEquals(true, v));
+        programs(env).forEach(p -> assertEquals(0, p.getSkippedRounds()));
+    }
+
+    private static void round(final Environment<Object> env, final Environment<Object> reference,
+            final IntPredicate sending) {
+        TestProgramInstances.round(env, sending);
+        TestProgramInstances.round(reference, sending);
+        assertEquals(TestProgramInstances.values(reference), TestProgramInstances.values(env));
+    }
+
+    private static Map<Integer, Long> skipped(final Environment<Object> env) {
+        final Map<Integer, Long> res = new TreeMap<>();
+        for (final Node<Object> node : env.getNodes()) {
+            for (final RunProtelisProgram program : ((ProtelisNode) node).getPrograms()) {
+                res.put(node.getId(), program.getSkippedRounds());
+            }
+        }
+        return res;
+    }
+
+    private static List<RunProtelisProgram> programs(final Environment<Object> env) {
+        final List<RunProtelisProgram> res = new ArrayList<>();
+        env.getNodes().forEach(n -> res.addAll(((ProtelisNode) n).getPrograms()));
+        return res;
+    }
+
+}
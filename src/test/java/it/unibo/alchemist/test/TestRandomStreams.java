@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.implementations.nodes.ProtelisNode;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.protelis.SplitMix64;
+import it.unibo.alchemist.protelis.SynchronousRounds;
+
+/**
+ */
+public class TestRandomStreams {
+
+    private static final long SEED = 42;
+    private static final int ROUNDS = 20;
+    private static final int THREADS = 4;
+
+    /**
+     * Streams derived from the same keys are equal, streams derived from
+     * different keys are not. Two programs with the same source on the same
+     * node differ by their position on the node.
+     */
+    @Test
+    public void testDerivation() {
+        final SplitMix64 first = SplitMix64.derive(SEED, 1, 2, 0);
+        final SplitMix64 second = SplitMix64.derive(SEED, 1, 2, 0);
+        final SplitMix64 other = SplitMix64.derive(SEED, 2, 1, 0);
+        final SplitMix64 sibling = SplitMix64.derive(SEED, 1, 2, 1);
+        for (int i = 0; i < ROUNDS; i++) {
+            final double value = first.nextDouble();
+            assertEquals(value, second.nextDouble(), 0);
+            assertNotEquals(value, other.nextDouble(), 0);
+            assertNotEquals(value, sibling.nextDouble(), 0);
+        }
+    }
+
+    /**
+     * With private random streams, a program that draws random numbers at
+     * every round gives the same results when its actions are executed one
+     * node at a time, as the engine does, and when rounds run on many
+     * threads. Another master seed gives other results.
+     *
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testExecuteEqualsParallel() throws Exception {
+        final Map<Integer, Object> expected = execute(SEED);
+        final ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            final Environment<Object> env = TestInSimulator.load("nbr02.psim");
+            final SynchronousRounds rounds = new SynchronousRounds(env, pool);
+            rounds.setRandomStreams(SEED);
+            rounds.step(ROUNDS);
+            assertEquals(expected, TestProgramInstances.values(env));
+        } finally {
+            pool.shutdown();
+        }
+        assertNotEquals(expected, execute(SEED + 1));
+    }
+
+    private static Map<Integer, Object> execute(final long seed) throws Exception {
+        final Environment<Object> env = TestInSimulator.load("nbr02.psim");
+        for (final Node<Object> node : env.getNodes()) {
+            ((ProtelisNode) node).getPrograms().forEach(p -> p.setRandomStream(seed));
+        }
+        for (int i = 0; i < ROUNDS; i++) {
+            TestProgramInstances.round(env);
+        }
+        return TestProgramInstances.values(env);
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.implementations.positions.Continuous2DEuclidean;
+import it.unibo.alchemist.model.interfaces.IMapEnvironment;
+import it.unibo.alchemist.model.interfaces.Position;
+import it.unibo.alchemist.protelis.RouteCache;
+
+/**
+ * Routes are computed once per pair of grid cells.
+ */
+public class TestRouteCache {
+
+    private static final double RESOLUTION = 10;
+
+    /**
+     * Origins and destinations in the same cells hit the cache, the others
+     * miss it.
+     */
+    @Test
+    public void testHitAndMiss() {
+        final IMapEnvironment<Object> env = mapEnvironment();
+        final RouteCache cache = RouteCache.enable(env, RESOLUTION, RouteCache.DEFAULT_SIZE);
+        final AtomicInteger computed = new AtomicInteger();
+        final Position origin = new Continuous2DEuclidean(1, 1);
+        final Position destination = new Continuous2DEuclidean(35, 1);
+        assertEquals(34, cache.distance(origin, destination, () -> route(computed, origin, destination)), 0);
+        /*
+         * Same cells at both ends: the first distance is reused
+         */
+        final Position nearOrigin = new Continuous2DEuclidean(9, 9);
+        final Position nearDestination = new Continuous2DEuclidean(31, 2);
+        assertEquals(34, cache.distance(nearOrigin, nearDestination,
+                () -> route(computed, nearOrigin, nearDestination)), 0);
+        assertEquals(1, computed.get());
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(1, cache.getStats().missCount());
+        /*
+         * The origin moved into another cell, and so did the destination
+         */
+        final Position moved = new Continuous2DEuclidean(11, 1);
+        assertEquals(24, cache.distance(moved, destination, () -> route(computed, moved, destination)), 0);
+        final Position farther = new Continuous2DEuclidean(41, 1);
+        assertEquals(30, cache.distance(moved, farther, () -> route(computed, moved, farther)), 0);
+        /*
+         * Reversing a route is a different route
+         */
+        assertEquals(34, cache.distance(destination, origin, () -> route(computed, destination, origin)), 0);
+        assertEquals(4, computed.get());
+        assertEquals(1, cache.getStats().hitCount());
+        assertEquals(4, cache.getStats().missCount());
+        cache.invalidateAll();
+        cache.distance(origin, destination, () -> route(computed, origin, destination));
+        assertEquals(5, computed.get());
+    }
+
+    /**
+     * Caches are enabled per environment.
+     */
+    @Test
+    public void testPerEnvironment() {
+        final IMapEnvironment<Object> env = mapEnvironment();
+        final IMapEnvironment<Object> other = mapEnvironment();
+        assertFalse(RouteCache.of(env).isPresent());
+        final RouteCache cache = RouteCache.enable(env, RESOLUTION, RouteCache.DEFAULT_SIZE);
+        assertSame(cache, RouteCache.of(env).get());
+        assertFalse(RouteCache.of(other).isPresent());
+        RouteCache.disable(env);
+        assertFalse(RouteCache.of(env).isPresent());
+    }
+
+    /**
+     * The resolution must be positive.
+     */
+    @Test
+    public void testInvalidResolution() {
+        try {
+            RouteCache.enable(mapEnvironment(), 0, RouteCache.DEFAULT_SIZE);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("resolution"));
+        }
+    }
+
+    private static double route(final AtomicInteger computed, final Position from, final Position to) {
+        computed.incrementAndGet();
+        return from.getDistanceTo(to);
+    }
+
+    /*
+     * The cache only uses the environment as a key
+     */
+    @SuppressWarnings("unchecked")
+    private static IMapEnvironment<Object> mapEnvironment() {
+        return (IMapEnvironment<Object>) Proxy.newProxyInstance(
+                TestRouteCache.class.getClassLoader(),
+                new Class<?>[] { IMapEnvironment.class },
+                (proxy, method, args) -> {
+                    if ("toString".equals(method.getName())) {
+                        return "map";
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.protelis.lang.datatype.DatatypeFactory;
+import org.protelis.vm.util.CodePath;
+
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.protelis.AlchemistNetworkManager;
+import it.unibo.alchemist.protelis.CodePathDictionary;
+import it.unibo.alchemist.protelis.StateCodec;
+
+/**
+ * Every kind of value survives a round trip through the binary wire format.
+ */
+public class TestStateCodec {
+
+    private static final int DEVICE = 3;
+    private static final int LONG_STRING = 1000;
+
+    /**
+     * Numbers, booleans, strings, null, nested tuples, device IDs and values
+     * falling back to Java serialization are decoded as they were encoded.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testValues() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("distanceTo.psim");
+        final CodePath key = paths(env).get(0);
+        final StateCodec codec = new StateCodec(new CodePathDictionary(), env);
+        final char[] chars = new char[LONG_STRING];
+        Arrays.fill(chars, '\u00e8');
+        final List<Object> values = Arrays.asList(
+                0d, -1.5, Double.POSITIVE_INFINITY, Double.NaN,
+                0, Integer.MIN_VALUE, Integer.MAX_VALUE,
+                Long.MIN_VALUE, Long.MAX_VALUE,
+                true, false,
+                "", "protelis", new String(chars),
+                DatatypeFactory.createTuple(),
+                DatatypeFactory.createTuple(1d, "a", DatatypeFactory.createTuple(2, false), null),
+                1.5f, (short) 2, new ArrayList<>(Arrays.asList(1, "a")));
+        for (final Object value : values) {
+            final Map<CodePath, Object> decoded = codec.decode(
+                    codec.encode(Collections.singletonMap(key, value)), Collections.emptyMap());
+            assertEquals(Collections.singletonMap(key, value), decoded);
+        }
+        final Map<CodePath, Object> empty = codec.decode(
+                codec.encode(Collections.singletonMap(key, null)), Collections.emptyMap());
+        assertTrue(empty.containsKey(key));
+        assertNull(empty.get(key));
+        /*
+         * Devices are resolved through the environment
+         */
+        final Object device = env.getNodeByID(DEVICE);
+        assertSame(device, codec.decode(codec.encode(Collections.singletonMap(key, device)),
+                Collections.emptyMap()).get(key));
+    }
+
+    /**
+     * A whole state, and changes applied to a base state, round trip with
+     * another codec sharing the dictionary.
+     * 
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testStates() throws Exception {
+        final Environment<Object> env = TestInSimulator.load("distanceTo.psim");
+        final List<CodePath> paths = paths(env);
+        final CodePathDictionary dictionary = new CodePathDictionary();
+        final StateCodec sender = new StateCodec(dictionary, env);
+        final StateCodec receiver = new StateCodec(dictionary, env);
+        final Map<CodePath, Object> state = new HashMap<>();
+        for (int i = 0; i < paths.size(); i++) {
+            state.put(paths.get(i), (double) i);
+        }
+        final Map<CodePath, Object> decoded = receiver.decode(sender.encode(state), Collections.emptyMap());
+        assertEquals(state, decoded);
+        final CodePath changed = paths.get(0);
+        final Map<CodePath, Object> next = new HashMap<>(state);
+        next.put(changed, "changed");
+        final List<CodePath> removed = new ArrayList<>();
+        if (paths.size() > 1) {
+            removed.add(paths.get(1));
+            next.remove(paths.get(1));
+        }
+        final Map<CodePath, Object> applied = receiver.decode(
+                sender.encode(Collections.singletonMap(changed, "changed"), removed), decoded);
+        assertEquals(next, applied);
+        /*
+         * The base state is not modified
+         */
+        assertEquals(state, decoded);
+        assertNotSame(decoded, applied);
+    }
+
+    private static List<CodePath> paths(final Environment<Object> env) {
+        TestProgramInstances.round(env);
+        final List<CodePath> res = new ArrayList<>(TestProgramInstances.managers(env).values().stream()
+                .map(AlchemistNetworkManager::getNeighborState)
+                .filter(s -> !s.isEmpty())
+                .findFirst().get()
+                .values().iterator().next()
+                .keySet());
+        assertFalse(res.isEmpty());
+        return res;
+    }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010-2015, Danilo Pianini and contributors
+ * listed in the project's pom.xml file.
+ *
+ * This file is part of Alchemist, and is distributed under the terms of
+ * the GNU General Public License, with a linking exception, as described
+ * in the file LICENSE in the Alchemist distribution's top directory.
+ */
+package it.unibo.alchemist.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import it.unibo.alchemist.model.implementations.actions.RunProtelisProgram;
+import it.unibo.alchemist.model.interfaces.Action;
+import it.unibo.alchemist.model.interfaces.Environment;
+import it.unibo.alchemist.model.interfaces.Node;
+import it.unibo.alchemist.model.interfaces.Reaction;
+import it.unibo.alchemist.protelis.SynchronousRounds;
+
+/**
+ * Synchronous rounds give the same values whether they run sequentially, in
+ * parallel, or as plain executions of the actions.
+ */
+public class TestSynchronousRounds {
+
+    private static final long SEED = 7;
+    private static final int ROUNDS = 30;
+    private static final int THREADS = 4;
+
+    /**
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testDistanceTo() throws Exception {
+        compare("distanceTo.psim");
+    }
+
+    /**
+     * @throws Exception
+     *             in case of failure
+     */
+    @Test
+    public void testNbr02() throws Exception {
+        compare("nbr02.psim");
+    }
+
+    private static void compare(final String simulation) throws Exception {
+        final Map<Integer, Object> expected = executeActions(simulation);
+        assertEquals(expected, runRounds(simulation, null));
+        final ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            assertEquals(expected, runRounds(simulation, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static Map<Integer, Object> executeActions(final String simulation) throws Exception {
+        final Environment<Object> env = TestInSimulator.load(simulation);
+        for (final Node<Object> node : env.getNodes()) {
+            for (final Reaction<Object> reaction : node.getReactions()) {
+                for (final Action<Object> action : reaction.getActions()) {
+                    if (action instanceof RunProtelisProgram) {
+                        ((RunProtelisProgram) action).setRandomStream(SEED);
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < ROUNDS; i++) {
+            TestProgramInstances.round(env);
+        }
+        return TestProgramInstances.values(env);
+    }
+
+    private static Map<Integer, Object> runRounds(final String simulation, final ForkJoinPool pool) throws Exception {
+        final Environment<Object> env = TestInSimulator.load(simulation);
+        final SynchronousRounds rounds = new SynchronousRounds(env, pool);
+        rounds.setRandomStreams(SEED);
+        rounds.step(ROUNDS);
+        return TestProgramInstances.values(env);
+    }
+
+}